@@ -0,0 +1,91 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning the attributes of an LDAP search result into a user: the attribute extraction of the dao, and the
+ * {@link UIBMigration.Mapper} and a {@link RuleBasedLdapDataMapper} with a typical rule set on their own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LdapAttributeMappingBenchmark {
+
+    private MigrationLdapUserIdentityDao dao;
+    private UIBMigration.Mapper mapper;
+    private RuleBasedLdapDataMapper ruleBasedMapper;
+    private Attributes attributes;
+
+    @Setup
+    public void setUp() {
+        mapper = new UIBMigration.Mapper();
+        Properties rules = new Properties();
+        rules.setProperty("firstName.rules", "trim, collapseWhitespace, replace(á=a;Á=A)");
+        rules.setProperty("lastName.rules", "trim, collapseWhitespace");
+        rules.setProperty("email.rules", "trim, lowercase, maxLength(254)");
+        rules.setProperty("cellPhone.rules", "strip( -), emptyToNull");
+        ruleBasedMapper = RuleBasedLdapDataMapper.compile(rules);
+        dao = new MigrationLdapUserIdentityDao("ldap://localhost:10389/dc=example,dc=com", "uid=admin,ou=system", "secret", "uid", "username", mapper, 0, null, 1);
+        attributes = new BasicAttributes(true);
+        attributes.put("uid", "0a8f0c1e-6c5b-4c8b-9a8e-2f6e1c9d7b42");
+        attributes.put("username", "jane.doe");
+        attributes.put("givenName", "Jane");
+        attributes.put("sn", "Doe");
+        attributes.put("mail", "jane.doe@example.com");
+        attributes.put("employeeNumber", "4711");
+        attributes.put("mobile", "+4791234567");
+        attributes.put("userpassword", "{SSHA}c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0".getBytes(StandardCharsets.UTF_8));
+        attributes.put("modifyTimestamp", "20240131235959Z");
+    }
+
+    @TearDown
+    public void tearDown() {
+        dao.close();
+    }
+
+    @Benchmark
+    public LDAPUserIdentity fromLdapAttributesWithPassword() throws NamingException {
+        return dao.fromLdapAttributesWithPassword(attributes);
+    }
+
+    @Benchmark
+    public LDAPUserIdentity mapperToLDAPUserIdentity() {
+        return mapper.toLDAPUserIdentity("0a8f0c1e-6c5b-4c8b-9a8e-2f6e1c9d7b42", "jane.doe", "Jane", "Doe", "jane.doe@example.com", "4711", "+4791234567", "{SSHA}c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0");
+    }
+
+    @Benchmark
+    public LDAPUserIdentity ruleBasedMapperToLDAPUserIdentity() {
+        return ruleBasedMapper.toLDAPUserIdentity("0a8f0c1e-6c5b-4c8b-9a8e-2f6e1c9d7b42", "jane.doe", "Jane", "Doe", "jane.doe@example.com", "4711", "+4791234567", "{SSHA}c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0");
+    }
+
+    @Benchmark
+    public String ruleBasedFirstName() {
+        return ruleBasedMapper.apply(LdapDataMapper.Field.FIRST_NAME, "Ágnes Ása");
+    }
+
+    @Benchmark
+    public String mapperFirstName() {
+        return mapper.firstName("Ágnes Ása");
+    }
+}
@@ -0,0 +1,152 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.BCryptService;
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.RDBMSLdapUserIdentityDao;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full migration of a synthetic user base through the extract, map, hash and write stages, with in-memory daos in
+ * place of LDAP and SQL, reported as users per second. Console output is discarded while measuring.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class MigrationPipelineBenchmark {
+    private static final int USERS = 10000;
+
+    @Param({"4"})
+    public int bcryptCost;
+
+    @Param({"1", "4"})
+    public int writerThreads;
+
+    @Param({"1", "4"})
+    public int partitions;
+
+    private List<LDAPUserIdentity> users;
+    private PrintStream console;
+
+    @Setup
+    public void setUp() {
+        users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            users.add(new LDAPUserIdentity("uid-" + i, "user" + i, "First" + i, "Last" + i, "user" + i + "@example.com", "secret" + i, "+47" + (90000000 + i), "ref-" + i));
+        }
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(USERS)
+    public int migrate() {
+        MigrationOptions options = new MigrationOptions();
+        options.writerThreads = writerThreads;
+        options.metricsIntervalSeconds = 0;
+        if (partitions > 1) {
+            options.partitionPrefixes = "0123456789".substring(0, partitions - 1);
+        }
+        InMemoryLdapUserIdentityDao ldapDao = new InMemoryLdapUserIdentityDao(users);
+        InMemoryRdbmsUserIdentityDao rdbmsDao = new InMemoryRdbmsUserIdentityDao();
+        new UIBMigration(ldapDao, rdbmsDao, null, new BCryptService("tH95ygpAohg4509h", bcryptCost), options).migrate();
+        return rdbmsDao.users.size();
+    }
+
+    /**
+     * Serves the users from memory, spreading them over the scan partitions by the last digit of the uid so that
+     * prefix partitions get work as they would against LDAP.
+     */
+    static class InMemoryLdapUserIdentityDao extends MigrationLdapUserIdentityDao {
+        private final List<LDAPUserIdentity> users;
+
+        InMemoryLdapUserIdentityDao(List<LDAPUserIdentity> users) {
+            super("ldap://localhost:10389", "", "", "uid", "username", new UIBMigration.Mapper(), 0, null, 1);
+            this.users = users;
+        }
+
+        @Override
+        public Iterable<LDAPUserIdentity> allUsersWithPassword(LdapScanPartition partition) {
+            if (partition.getFilter() == null) {
+                return users;
+            }
+            List<LDAPUserIdentity> result = new ArrayList<>();
+            for (LDAPUserIdentity user : users) {
+                if (matches(partition.getFilter(), user.getUid())) {
+                    result.add(user);
+                }
+            }
+            return result;
+        }
+
+        private static boolean matches(String prefixFilter, String uid) {
+            String digit = uid.substring(uid.length() - 1);
+            boolean inPrefix = prefixFilter.startsWith("(uid=") && prefixFilter.equals("(uid=" + digit + "*)");
+            boolean inRemainder = prefixFilter.startsWith("(!") && !prefixFilter.contains("(uid=" + digit + "*)");
+            return inPrefix || inRemainder;
+        }
+    }
+
+    static class InMemoryRdbmsUserIdentityDao extends RDBMSLdapUserIdentityDao {
+        final Map<String, RDBMSUserIdentity> users = new ConcurrentHashMap<>();
+        private final Map<String, RDBMSUserIdentity> usersByUsername = new ConcurrentHashMap<>();
+
+        InMemoryRdbmsUserIdentityDao() {
+            super(new BasicDataSource());
+        }
+
+        @Override
+        public RDBMSUserIdentity get(String uid) {
+            return users.get(uid);
+        }
+
+        @Override
+        public RDBMSUserIdentity getWithUsername(String username) {
+            return usersByUsername.get(username);
+        }
+
+        @Override
+        public boolean create(RDBMSUserIdentity user) {
+            users.put(user.getUid(), user);
+            usersByUsername.put(user.getUsername(), user);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.BCryptService;
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+import net.whydah.identity.user.identity.UserIdentityConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a user to its SQL form, which is dominated by the BCrypt hash of the password. The costs are the
+ * one of the test configuration and the range used in production, each step doubles the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UserIdentityConverterBenchmark {
+
+    @Param({"6", "10", "12"})
+    public int bcryptCost;
+
+    private UserIdentityConverter converter;
+    private LDAPUserIdentity user;
+
+    @Setup
+    public void setUp() {
+        converter = new UserIdentityConverter(new BCryptService("tH95ygpAohg4509h", bcryptCost));
+        user = new LDAPUserIdentity("0a8f0c1e-6c5b-4c8b-9a8e-2f6e1c9d7b42", "jane.doe", "Jane", "Doe", "jane.doe@example.com", "secret", "+4791234567", "4711");
+    }
+
+    @Benchmark
+    public RDBMSUserIdentity convertFromLDAPUserIdentity() {
+        return converter.convertFromLDAPUserIdentity(user);
+    }
+}
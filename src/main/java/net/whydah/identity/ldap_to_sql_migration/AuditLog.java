@@ -0,0 +1,167 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One line per migrated user, with a timestamp, the outcome, uid and username, tab separated, and optionally the
+ * LDAP password.
+ * <p>
+ * The stages only format the line and put it on a queue. A single background thread drains the queue in batches
+ * into a buffered writer and flushes whenever the queue runs empty, so workers never contend on a stream lock or
+ * wait for I/O unless the queue fills up.
+ */
+class AuditLog implements Closeable {
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final int BATCH_SIZE = 1024;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long POLL_MILLIS = 100;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    enum Outcome {
+        INSERTED, UPDATED, SKIPPED, FAILED, DRY_RUN
+    }
+
+    private final Writer out;
+    private final boolean closeOut;
+    private final boolean printPasswords;
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile IOException error;
+
+    private AuditLog(Writer out, boolean closeOut, boolean printPasswords) {
+        this.out = out;
+        this.closeOut = closeOut;
+        this.printPasswords = printPasswords;
+        this.thread = new Thread(this::drain, "audit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Appends to the given file, creating it readable by its owner only where the file system supports it. An
+     * existing file that others can access is refused, as the log may hold passwords.
+     */
+    static AuditLog toFile(Path file, boolean printPasswords) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            if (Files.exists(file)) {
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+                if (!OWNER_ONLY.containsAll(permissions)) {
+                    throw new IOException("Audit file " + file + " is accessible by others (" + PosixFilePermissions.toString(permissions)
+                            + "), restrict it to its owner or remove it");
+                }
+            } else {
+                Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            }
+        } else if (!Files.exists(file)) {
+            Files.createFile(file);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.APPEND), StandardCharsets.UTF_8), BUFFER_SIZE);
+        return new AuditLog(writer, true, printPasswords);
+    }
+
+    static AuditLog toConsole(boolean printPasswords) {
+        return new AuditLog(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE), false, printPasswords);
+    }
+
+    void record(Outcome outcome, LDAPUserIdentity user) throws InterruptedException {
+        record(outcome, user.getUid(), user.getUsername(), user.getPassword(), null);
+    }
+
+    /**
+     * @param password the LDAP password, only written if passwords are printed.
+     * @param detail   e.g. the error of a failed user, or null.
+     */
+    void record(Outcome outcome, String uid, String username, String password, String detail) throws InterruptedException {
+        StringBuilder line = new StringBuilder(128)
+                .append(Instant.now()).append('\t')
+                .append(outcome).append('\t')
+                .append(uid).append('\t')
+                .append(username);
+        if (printPasswords) {
+            line.append('\t').append(password);
+        }
+        if (detail != null) {
+            line.append('\t').append(detail.replace('\n', ' '));
+        }
+        queue.put(line.append('\n').toString());
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                String first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(List<String> batch) {
+        if (error != null) {
+            return; // keep draining so that the stages are not blocked by a broken audit log
+        }
+        try {
+            for (String line : batch) {
+                out.write(line);
+            }
+            if (queue.isEmpty()) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            error = e;
+            System.out.printf("Unable to write audit log, no more users are audited: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes what is left on the queue and closes the file.
+     *
+     * @throws IOException if the audit log could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (closeOut) {
+            out.close();
+        } else {
+            out.flush();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * Stops a migration when too many of its users fail, rather than at the first failure. The error rate is taken
+ * over the outcomes of the last {@code windowSize} users, and only once at least {@code minimumUsers} have been
+ * recorded, so a few bad entries early in a run do not trip it while a database that rejects everything does.
+ */
+class CircuitBreaker {
+    private final double maxErrorRate;
+    private final int minimumUsers;
+    private final boolean[] window;
+    private int next;
+    private int recorded;
+    private int failures;
+    private volatile boolean open;
+
+    /**
+     * @param maxErrorRate the share of failed users, between 0 and 1, above which the breaker opens.
+     */
+    CircuitBreaker(double maxErrorRate, int windowSize, int minimumUsers) {
+        this.maxErrorRate = maxErrorRate;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumUsers = Math.min(minimumUsers, this.window.length);
+    }
+
+    /**
+     * Records the outcome of one user.
+     *
+     * @return true if the breaker is open, now or before, and the run should stop.
+     */
+    synchronized boolean record(boolean failed) {
+        if (recorded == window.length && window[next]) {
+            failures--;
+        }
+        window[next] = failed;
+        next = (next + 1) % window.length;
+        recorded = Math.min(recorded + 1, window.length);
+        if (failed) {
+            failures++;
+        }
+        if (!open && recorded >= minimumUsers && failures > maxErrorRate * recorded) {
+            open = true;
+        }
+        return open;
+    }
+
+    synchronized double getErrorRate() {
+        return recorded == 0 ? 0 : (double) failures / recorded;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+}
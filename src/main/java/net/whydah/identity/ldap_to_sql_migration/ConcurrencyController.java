@@ -0,0 +1,104 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Tunes the active thread count of pipeline stages at runtime by hill climbing on the overall throughput.
+ * <p>
+ * Every tick the controller measures the rate of completed users. If the previous adjustment made the rate drop by
+ * more than the tolerance, it is undone. Otherwise the controller makes one new adjustment: it adds a thread to the
+ * stage with the fullest input queue, which is the bottleneck, or, when no queue is filling up, removes a thread from
+ * a stage whose queue stays empty, to free connections it does not need. Each adjustment is then judged at the next
+ * tick, so the controller settles at the best rate it can find without manual tuning runs. After an undo it waits a
+ * few ticks before probing again, so it does not keep paying for the same failed experiment.
+ */
+class ConcurrencyController implements Runnable {
+    static final double BOTTLENECK_QUEUE_FILL = 0.5;
+    static final double TOLERANCE = 0.05;
+    static final int COOLDOWN_TICKS = 6;
+
+    private final List<PipelineStage<?>> stages;
+    private final LongSupplier completed;
+
+    private long lastCompleted;
+    private long lastTickNanos;
+    private double lastRate = -1;
+    private PipelineStage<?> adjustedStage;
+    private int threadsBeforeAdjustment;
+    private int cooldown;
+
+    /**
+     * @param stages    the stages that may be resized, each between 1 and its max threads.
+     * @param completed the number of users that have left the pipeline so far.
+     */
+    ConcurrencyController(List<PipelineStage<?>> stages, LongSupplier completed) {
+        this.stages = stages;
+        this.completed = completed;
+        this.lastCompleted = completed.getAsLong();
+        this.lastTickNanos = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void tick() {
+        long now = System.nanoTime();
+        long completedNow = completed.getAsLong();
+        double rate = (completedNow - lastCompleted) * 1e9 / Math.max(1, now - lastTickNanos);
+        lastCompleted = completedNow;
+        lastTickNanos = now;
+        tick(rate);
+    }
+
+    synchronized void tick(double rate) {
+        if (adjustedStage != null && lastRate >= 0 && rate < lastRate * (1 - TOLERANCE)) {
+            System.out.printf("Auto-tune: %s threads %d -> %d, rate fell from %.1f to %.1f users/s%n",
+                    adjustedStage.getName(), adjustedStage.getActiveThreads(), threadsBeforeAdjustment, lastRate, rate);
+            adjustedStage.setActiveThreads(threadsBeforeAdjustment);
+            adjustedStage = null;
+            lastRate = rate;
+            cooldown = COOLDOWN_TICKS;
+            return;
+        }
+        adjustedStage = null;
+        lastRate = rate;
+        if (cooldown > 0) {
+            cooldown--;
+            return;
+        }
+
+        PipelineStage<?> bottleneck = null;
+        double bottleneckFill = BOTTLENECK_QUEUE_FILL;
+        PipelineStage<?> idle = null;
+        for (PipelineStage<?> stage : stages) {
+            double fill = (double) stage.queueDepth() / stage.queueCapacity();
+            if (fill >= bottleneckFill && stage.getActiveThreads() < stage.getMaxThreads()) {
+                bottleneck = stage;
+                bottleneckFill = fill;
+            }
+            if (stage.queueDepth() == 0 && stage.getActiveThreads() > 1 && idle == null) {
+                idle = stage;
+            }
+        }
+        if (bottleneck != null) {
+            adjust(bottleneck, bottleneck.getActiveThreads() + 1, rate);
+        } else if (idle != null) {
+            adjust(idle, idle.getActiveThreads() - 1, rate);
+        }
+    }
+
+    private void adjust(PipelineStage<?> stage, int threads, double rate) {
+        System.out.printf("Auto-tune: %s threads %d -> %d at %.1f users/s, queue %d/%d%n",
+                stage.getName(), stage.getActiveThreads(), threads, rate, stage.queueDepth(), stage.queueCapacity());
+        threadsBeforeAdjustment = stage.getActiveThreads();
+        adjustedStage = stage;
+        stage.setActiveThreads(threads);
+    }
+}
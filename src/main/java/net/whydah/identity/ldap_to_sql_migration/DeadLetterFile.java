@@ -0,0 +1,77 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Collects the users that failed for good in a {@link UserSnapshotWriter snapshot} file, so that they can be
+ * migrated again later with {@code --import-snapshot} once the cause is fixed. The file is only created when the
+ * first user fails, and is marked complete when closed.
+ */
+class DeadLetterFile implements Closeable {
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("uuuuMMdd-HHmmss-SSS");
+
+    private final Path file;
+    private UserSnapshotWriter writer;
+    private long count;
+    private boolean broken;
+
+    DeadLetterFile(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return a dead-letter file in the given directory named after the current time, so that a run never
+     * overwrites the dead letters of an earlier one.
+     */
+    static DeadLetterFile inDirectory(Path directory) {
+        return new DeadLetterFile(directory.resolve("uib-migration-dead-letters-" + LocalDateTime.now().format(FILE_TIME) + ".snapshot"));
+    }
+
+    /**
+     * Adds a user, or only reports that it could not if the file cannot be written. A broken dead-letter file does
+     * not stop the migration, the failed users are still in the audit log and the console output.
+     */
+    synchronized void write(LDAPUserIdentity user) {
+        if (broken) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                writer = new UserSnapshotWriter(file);
+            }
+            writer.write(user);
+            count++;
+        } catch (IOException e) {
+            broken = true;
+            System.out.printf("Unable to write dead-letter file %s, failed users are not kept: %s%n", file, e.getMessage());
+        }
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (!broken) {
+                writer.finish();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
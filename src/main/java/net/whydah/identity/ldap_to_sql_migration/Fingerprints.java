@@ -0,0 +1,55 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * Stable 64-bit fingerprints of strings. The value only depends on the characters of the string, never on the JVM
+ * or platform, so fingerprints can be compared across runs and processes.
+ */
+final class Fingerprints {
+
+    private Fingerprints() {
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units, followed by the MurmurHash3 64-bit finalizer to spread the bits. Never
+     * returns 0, so the result can be stored in a {@link LongHashSet}.
+     */
+    static long of(String value) {
+        return finish(hash(0xcbf29ce484222325L, value));
+    }
+
+    /**
+     * A fingerprint of a sequence of values, where null and the empty string differ and moving characters from one
+     * value to the next changes the result.
+     */
+    static long of(String... values) {
+        long h = 0xcbf29ce484222325L;
+        for (String value : values) {
+            if (value == null) {
+                h ^= 0x10001; // null, outside the range of a char
+                h *= 0x100000001b3L;
+            } else {
+                h = hash(h, value);
+            }
+            h ^= 0x10000; // separator, outside the range of a char
+            h *= 0x100000001b3L;
+        }
+        return finish(h);
+    }
+
+    private static long hash(long h, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0L ? 1L : h;
+    }
+}
@@ -0,0 +1,150 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Inserts or updates user identities in JDBC batches, one transaction and one {@code executeBatch} per batch.
+ * <p>
+ * When a batch fails it is rolled back and split in two halves that are retried separately, recursively, so that a
+ * few bad rows only cost a few extra round trips and never the good rows of the same batch. A batch that fails with a
+ * transient error, such as a deadlock or a dropped connection, is first retried as a whole by the retry policy.
+ */
+class JdbcUserIdentityWriter {
+
+    private final DataSource dataSource;
+    private final RetryPolicy retryPolicy;
+
+    JdbcUserIdentityWriter(DataSource dataSource) {
+        this(dataSource, RetryPolicy.NONE);
+    }
+
+    JdbcUserIdentityWriter(DataSource dataSource, RetryPolicy retryPolicy) {
+        this.dataSource = dataSource;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return the rows that could not be written, each with the error of its single-row attempt.
+     */
+    List<Failure> write(List<RDBMSUserIdentity> batch) {
+        return write(batch, UserIdentitySql.INSERT);
+    }
+
+    /**
+     * Updates existing rows by uid. A row that does not exist fails like a row that violates a constraint. The
+     * password columns of a {@link PreHashedUserIdentity} are left as they are, as they may hold a password the user
+     * has set in UIB since the migration.
+     *
+     * @return the rows that could not be updated, each with the error of its single-row attempt.
+     */
+    List<Failure> update(List<RDBMSUserIdentity> batch) {
+        List<RDBMSUserIdentity> withPassword = new ArrayList<>(batch.size());
+        List<RDBMSUserIdentity> withoutPassword = new ArrayList<>();
+        for (RDBMSUserIdentity identity : batch) {
+            (identity instanceof PreHashedUserIdentity ? withoutPassword : withPassword).add(identity);
+        }
+        List<Failure> failures = new ArrayList<>(write(withPassword, UserIdentitySql.UPDATE));
+        failures.addAll(write(withoutPassword, UserIdentitySql.UPDATE_WITHOUT_PASSWORD));
+        return failures;
+    }
+
+    private List<Failure> write(List<RDBMSUserIdentity> batch, String sql) {
+        if (batch.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            executeWithRetry(batch, sql);
+            return Collections.emptyList();
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                return Collections.singletonList(new Failure(batch.get(0), e));
+            }
+            int half = batch.size() / 2;
+            List<Failure> failures = new ArrayList<>(write(batch.subList(0, half), sql));
+            failures.addAll(write(batch.subList(half, batch.size()), sql));
+            return failures;
+        }
+    }
+
+    private void executeWithRetry(List<RDBMSUserIdentity> batch, String sql) throws SQLException {
+        for (int retry = 0; ; retry++) {
+            try {
+                execute(batch, sql);
+                return;
+            } catch (SQLException e) {
+                if (!retryPolicy.shouldRetry(e, retry)) {
+                    throw e;
+                }
+                try {
+                    retryPolicy.backoff(retry);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void execute(List<RDBMSUserIdentity> batch, String sql) throws SQLException {
+        boolean update = !UserIdentitySql.INSERT.equals(sql);
+        boolean withPassword = !UserIdentitySql.UPDATE_WITHOUT_PASSWORD.equals(sql);
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (RDBMSUserIdentity identity : batch) {
+                    int i = 1;
+                    if (!update) {
+                        statement.setString(i++, identity.getUid());
+                    }
+                    statement.setString(i++, identity.getUsername());
+                    statement.setString(i++, identity.getFirstName());
+                    statement.setString(i++, identity.getLastName());
+                    statement.setString(i++, identity.getPersonRef());
+                    statement.setString(i++, identity.getEmail());
+                    statement.setString(i++, identity.getCellPhone());
+                    if (withPassword) {
+                        statement.setString(i++, identity.getPassword());
+                        statement.setString(i++, identity.getPasswordBCrypt());
+                    }
+                    if (update) {
+                        statement.setString(i, identity.getUid());
+                    }
+                    statement.addBatch();
+                }
+                int[] updateCounts = statement.executeBatch();
+                if (update) {
+                    for (int updateCount : updateCounts) {
+                        if (updateCount == 0) {
+                            throw new SQLException("No user identity to update with the given uid");
+                        }
+                    }
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    static class Failure {
+        final RDBMSUserIdentity identity;
+        final SQLException error;
+
+        Failure(RDBMSUserIdentity identity, SQLException error) {
+            this.identity = identity;
+            this.error = error;
+        }
+    }
+}
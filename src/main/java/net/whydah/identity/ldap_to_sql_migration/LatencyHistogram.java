@@ -0,0 +1,169 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with microsecond resolution and log-linear buckets: each power of two is split
+ * into eight buckets, so any recorded value is reported within 12.5% of its true value while the whole range from
+ * one microsecond to days fits in under 500 counters. Recording is a few atomic increments, cheap enough to call
+ * for every user in every stage.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time passed since the given {@link System#nanoTime()}.
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void record(long duration, TimeUnit unit) {
+        recordMicros(Math.max(0, unit.toMicros(duration)), 1);
+    }
+
+    private void recordMicros(long micros, long times) {
+        counts.addAndGet(bucket(micros), times);
+        count.addAndGet(times);
+        sumMicros.addAndGet(micros * times);
+        raiseMax(micros);
+    }
+
+    private void raiseMax(long micros) {
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram, e.g. of another shard of the same migration.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sumMicros.addAndGet(other.sumMicros.get());
+        raiseMax(other.maxMicros.get());
+    }
+
+    /**
+     * Adds {@code times} values of the highest value of the bucket that {@code micros} falls in, used to rebuild a
+     * histogram from its buckets.
+     */
+    void addBucket(long micros, long times) {
+        recordMicros(micros, times);
+    }
+
+    /**
+     * Adds a histogram as summarized by {@link #buckets()}, {@link #getMeanMillis()} and {@link #getMaxMillis()},
+     * keeping its mean and max exact rather than rounded up to their buckets.
+     */
+    void addSummary(long[][] buckets, double meanMillis, double maxMillis) {
+        long n = 0;
+        for (long[] bucket : buckets) {
+            counts.addAndGet(bucket(bucket[0]), bucket[1]);
+            n += bucket[1];
+        }
+        count.addAndGet(n);
+        sumMicros.addAndGet(Math.round(meanMillis * 1000 * n));
+        raiseMax(Math.round(maxMillis * 1000));
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sumMicros.get() / 1000.0 / n;
+    }
+
+    double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return the smallest bucket bound that at least the given share of the values are at or below, in
+     * milliseconds.
+     */
+    double getPercentileMillis(double quantile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * n));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return the non-empty buckets as pairs of the highest value of the bucket in microseconds and the count.
+     */
+    long[][] buckets() {
+        int nonEmpty = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            if (snapshot[i] > 0) {
+                nonEmpty++;
+            }
+        }
+        long[][] buckets = new long[nonEmpty][];
+        int j = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] > 0) {
+                buckets[j++] = new long[]{upperBound(i), snapshot[i]};
+            }
+        }
+        return buckets;
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,117 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adjusts a {@link RateLimiter} to keep the latency of the operations it limits below a target, so that a migration
+ * running next to production traffic uses the spare capacity of LDAP or the database without slowing down logins.
+ * <p>
+ * Every tick the throttle computes the mean latency of the operations recorded in its histograms since the last
+ * tick. Above the target, the rate is cut to {@link #BACKOFF} of the current limit, or of the observed rate when
+ * unlimited. At or below it, the limit is raised by {@link #INCREASE} and lifted entirely once it is well above
+ * what the migration actually uses, but never above the configured maximum. This is the additive increase,
+ * multiplicative decrease of TCP congestion control, which backs off fast when the server struggles and probes
+ * for capacity slowly.
+ */
+class LatencyThrottle implements Runnable {
+    static final double BACKOFF = 0.7;
+    static final double INCREASE = 0.1;
+    static final double MIN_RATE = 1;
+
+    private final RateLimiter limiter;
+    private final double maxRate;
+    private final double targetMillis;
+    private final double latencyScale;
+    private final List<LatencyHistogram> histograms;
+
+    private long lastCount;
+    private double lastTotalMillis;
+    private long lastAcquired;
+    private long lastTickNanos;
+
+    /**
+     * @param maxRate      the configured rate of the limiter, which the throttle never exceeds, or 0 for unlimited.
+     * @param latencyScale the number of recorded values that make up one operation with the target latency, e.g.
+     *                     the LDAP page size when entries are recorded but the target is the latency of a page.
+     */
+    LatencyThrottle(RateLimiter limiter, double maxRate, double targetMillis, double latencyScale, LatencyHistogram... histograms) {
+        this.limiter = limiter;
+        this.maxRate = maxRate;
+        this.targetMillis = targetMillis;
+        this.latencyScale = latencyScale;
+        this.histograms = Arrays.asList(histograms);
+        this.lastCount = count();
+        this.lastTotalMillis = totalMillis();
+        this.lastAcquired = limiter.getAcquired();
+        this.lastTickNanos = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void tick() {
+        long now = System.nanoTime();
+        long count = count();
+        double totalMillis = totalMillis();
+        long acquired = limiter.getAcquired();
+        double observedRate = (acquired - lastAcquired) * 1e9 / Math.max(1, now - lastTickNanos);
+        long intervalCount = count - lastCount;
+        double intervalMillis = totalMillis - lastTotalMillis;
+        lastCount = count;
+        lastTotalMillis = totalMillis;
+        lastAcquired = acquired;
+        lastTickNanos = now;
+        if (intervalCount > 0) {
+            tick(intervalMillis / intervalCount * latencyScale, observedRate);
+        }
+    }
+
+    synchronized void tick(double latencyMillis, double observedRate) {
+        double rate = limiter.getRate();
+        double newRate;
+        if (latencyMillis > targetMillis) {
+            newRate = Math.max(MIN_RATE, (rate > 0 ? rate : observedRate) * BACKOFF);
+        } else if (rate > 0) {
+            newRate = rate * (1 + INCREASE) + MIN_RATE;
+            if (maxRate > 0 && newRate >= maxRate) {
+                newRate = maxRate;
+            } else if (maxRate <= 0 && newRate > 2 * observedRate) {
+                newRate = 0; // the limit no longer holds the migration back
+            }
+        } else {
+            return;
+        }
+        if (newRate != rate) {
+            System.out.printf("Throttle: %s latency %.1f ms, target %.1f ms, rate limit %s -> %s%n", limiter.getName(), latencyMillis, targetMillis, describe(rate), describe(newRate));
+            limiter.setRate(newRate);
+        }
+    }
+
+    private static String describe(double rate) {
+        return rate > 0 ? String.format(Locale.ROOT, "%.1f/s", rate) : "unlimited";
+    }
+
+    private long count() {
+        long count = 0;
+        for (LatencyHistogram histogram : histograms) {
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    private double totalMillis() {
+        double totalMillis = 0;
+        for (LatencyHistogram histogram : histograms) {
+            totalMillis += histogram.getMeanMillis() * histogram.getCount();
+        }
+        return totalMillis;
+    }
+}
@@ -0,0 +1,142 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.io.Closeable;
+import java.util.Hashtable;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of bound LDAP contexts, so that repeated lookups do not pay a TCP connect and bind each time.
+ * <p>
+ * At most {@code maxSize} contexts are handed out at a time, callers block up to {@code borrowTimeoutMillis} for a
+ * free one. Idle contexts are reused most-recently-used first, contexts that have been idle longer than
+ * {@code maxIdleMillis} are closed, and contexts that have been idle longer than {@code validateAfterIdleMillis}
+ * are validated with a cheap base-entry read before they are handed out again.
+ */
+class LdapContextPool implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(LdapContextPool.class);
+
+    private static final String[] NO_ATTRIBUTES = new String[]{"1.1"};
+
+    private final Hashtable<String, String> env;
+    private final long borrowTimeoutMillis;
+    private final long maxIdleMillis;
+    private final long validateAfterIdleMillis;
+    private final Semaphore available;
+    private final LinkedBlockingDeque<PooledContext> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed;
+
+    LdapContextPool(Hashtable<String, String> env, int maxSize, long borrowTimeoutMillis, long maxIdleMillis, long validateAfterIdleMillis) {
+        this.env = env;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.maxIdleMillis = maxIdleMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.available = new Semaphore(maxSize, true);
+    }
+
+    DirContext borrow() throws NamingException {
+        if (closed) {
+            throw new ServiceUnavailableException("LDAP context pool is closed");
+        }
+        try {
+            if (!available.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new ServiceUnavailableException("Timed out after " + borrowTimeoutMillis + " ms waiting for a pooled LDAP context");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted while waiting for a pooled LDAP context");
+        }
+        try {
+            evictIdle();
+            PooledContext pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    return pooled.context;
+                }
+                closeQuietly(pooled.context);
+            }
+            return new InitialDirContext(env);
+        } catch (NamingException | RuntimeException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy context to the pool.
+     */
+    void release(DirContext context) {
+        if (closed) {
+            closeQuietly(context);
+        } else {
+            idle.offerFirst(new PooledContext(context, System.currentTimeMillis()));
+        }
+        available.release();
+    }
+
+    /**
+     * Discards a context that failed, e.g. after a communication error, instead of returning it to the pool.
+     */
+    void invalidate(DirContext context) {
+        closeQuietly(context);
+        available.release();
+    }
+
+    private boolean isUsable(PooledContext pooled) {
+        if (System.currentTimeMillis() - pooled.lastUsed < validateAfterIdleMillis) {
+            return true;
+        }
+        try {
+            pooled.context.getAttributes("", NO_ATTRIBUTES);
+            return true;
+        } catch (NamingException e) {
+            log.debug("Discarding pooled LDAP context that failed validation: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        PooledContext oldest;
+        while ((oldest = idle.peekLast()) != null && now - oldest.lastUsed > maxIdleMillis) {
+            if (idle.removeLastOccurrence(oldest)) {
+                closeQuietly(oldest.context);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledContext pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closeQuietly(pooled.context);
+        }
+    }
+
+    private static void closeQuietly(DirContext context) {
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.debug("Unable to close ldap context", e);
+        }
+    }
+
+    private static class PooledContext {
+        private final DirContext context;
+        private final long lastUsed;
+
+        private PooledContext(DirContext context, long lastUsed) {
+            this.context = context;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
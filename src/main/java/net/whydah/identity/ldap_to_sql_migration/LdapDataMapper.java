@@ -4,5 +4,51 @@ import net.whydah.identity.user.identity.LDAPUserIdentity;
 
 public interface LdapDataMapper {
 
+    /**
+     * The user fields read from LDAP. The uid and username attributes are configured with
+     * {@code ldap.primary.uid.attribute} and {@code ldap.primary.username.attribute}, the others can be changed by a
+     * mapper through {@link #attributeName(Field)}.
+     */
+    enum Field {
+        UID("uid", null),
+        USERNAME("username", null),
+        FIRST_NAME("firstName", "givenName"),
+        LAST_NAME("lastName", "sn"),
+        EMAIL("email", "mail"),
+        PERSON_REF("personRef", "employeeNumber"),
+        CELL_PHONE("cellPhone", "mobile"),
+        PASSWORD("password", "userpassword");
+
+        private final String key;
+        private final String defaultAttribute;
+
+        Field(String key, String defaultAttribute) {
+            this.key = key;
+            this.defaultAttribute = defaultAttribute;
+        }
+
+        /**
+         * @return the name of the field in rule files, e.g. {@code firstName}.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the LDAP attribute the field is read from unless mapped otherwise, or null for the uid and
+         * username, whose attributes are configured.
+         */
+        public String getDefaultAttribute() {
+            return defaultAttribute;
+        }
+    }
+
     LDAPUserIdentity toLDAPUserIdentity(String uid, String username, String firstname, String lastname, String email, String personRef, String cellPhone, String password);
+
+    /**
+     * @return the LDAP attribute to read the given field from. Not called for the uid and username.
+     */
+    default String attributeName(Field field) {
+        return field.getDefaultAttribute();
+    }
 }
@@ -0,0 +1,139 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the results of an LDAP search, fetching them from the server one page at a time using the
+ * RFC 2696 simple paged results control. Only the current page is held by the client, and the next page is
+ * requested when the current one is exhausted.
+ * <p>
+ * A page-size of 0 or less disables paging and issues a single plain search. The control is sent as
+ * non-critical, so servers that do not support paging will return the full result as before.
+ */
+class LdapPagedSearch implements Iterator<SearchResult>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(LdapPagedSearch.class);
+
+    private final LdapContext context;
+    private final String base;
+    private final String filter;
+    private final SearchControls constraints;
+    private final int pageSize;
+
+    private NamingEnumeration<SearchResult> page;
+    private int pageCount;
+    private boolean closed;
+
+    LdapPagedSearch(Hashtable<String, String> env, String base, String filter, SearchControls constraints, int pageSize) throws NamingException {
+        this.context = new InitialLdapContext(env, null);
+        this.base = base;
+        this.filter = filter;
+        this.constraints = constraints;
+        this.pageSize = pageSize;
+        try {
+            requestPage(null);
+        } catch (NamingException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void requestPage(byte[] cookie) throws NamingException {
+        if (pageSize > 0) {
+            try {
+                context.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        page = context.search(base, filter, constraints);
+        pageCount++;
+        log.trace("Requested page {} of search base='{}', filter='{}'", pageCount, base, filter);
+    }
+
+    private byte[] responseCookie() throws NamingException {
+        Control[] responseControls = context.getResponseControls();
+        if (responseControls == null) {
+            return null;
+        }
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl) control).getCookie();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        try {
+            while (!page.hasMore()) {
+                byte[] cookie = pageSize > 0 ? responseCookie() : null;
+                if (cookie == null || cookie.length == 0) {
+                    close();
+                    return false;
+                }
+                requestPage(cookie);
+            }
+            return true;
+        } catch (NamingException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public SearchResult next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("next() called after end of iterator, please guard with hasNext()");
+        }
+        try {
+            return page.next();
+        } catch (NamingException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    int getPageCount() {
+        return pageCount;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (page != null) {
+                page.close();
+            }
+        } catch (NamingException e) {
+            log.debug("Unable to close search enumeration", e);
+        }
+        try {
+            context.close();
+        } catch (NamingException e) {
+            log.debug("Unable to close ldap context", e);
+        }
+    }
+}
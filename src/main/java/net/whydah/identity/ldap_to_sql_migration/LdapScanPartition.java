@@ -0,0 +1,135 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An independent slice of the LDAP user scan. A partition narrows the full scan with a search base relative to
+ * the configured ldap url and/or an extra filter that is and'ed with the scan filter. Partitions can be read
+ * concurrently, each by its own paged search. When users are migrated from several sources, each partition belongs to
+ * one of them.
+ */
+public class LdapScanPartition {
+
+    static final LdapScanPartition ALL = new LdapScanPartition("all", "", null);
+
+    private final String name;
+    private final String base;
+    private final String filter;
+    private final String source;
+
+    LdapScanPartition(String name, String base, String filter) {
+        this(name, base, filter, null);
+    }
+
+    private LdapScanPartition(String name, String base, String filter, String source) {
+        this.name = name;
+        this.base = base;
+        this.filter = filter;
+        this.source = source;
+    }
+
+    /**
+     * @return this partition of the given source, named after both.
+     */
+    LdapScanPartition inSource(String source) {
+        return new LdapScanPartition(source + "/" + name, base, filter, source);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    /**
+     * @return the extra filter of this partition, or null if the partition is defined by its base only.
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the name of the source this partition belongs to, or null if there is only one source.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    String combinedFilter(String searchFilter) {
+        if (filter == null) {
+            return searchFilter;
+        }
+        return "(&" + searchFilter + filter + ")";
+    }
+
+    /**
+     * Creates the partitions of a scan split by sub-base DNs and/or by prefix of an attribute value. The result is
+     * the cross product of both lists. Prefix partitions get an extra remainder partition matching every value that
+     * does not start with any of the prefixes, so the partitions always cover the whole scan without overlap.
+     *
+     * @param bases           search bases relative to the ldap url, or empty to scan from the root.
+     * @param prefixAttribute attribute to split on, typically the uid attribute.
+     * @param prefixes        the characters that start a partition each, or null/empty to not split on prefix.
+     */
+    static List<LdapScanPartition> partitions(List<String> bases, String prefixAttribute, String prefixes) {
+        List<String> partitionBases = bases == null || bases.isEmpty() ? Collections.singletonList("") : bases;
+        List<String> prefixFilters = prefixFilters(prefixAttribute, prefixes);
+        if (partitionBases.size() == 1 && prefixFilters.isEmpty()) {
+            return Collections.singletonList(new LdapScanPartition(partitionBases.get(0).isEmpty() ? ALL.name : partitionBases.get(0), partitionBases.get(0), null));
+        }
+        List<LdapScanPartition> partitions = new ArrayList<>();
+        for (String base : partitionBases) {
+            if (prefixFilters.isEmpty()) {
+                partitions.add(new LdapScanPartition(base, base, null));
+                continue;
+            }
+            for (String prefixFilter : prefixFilters) {
+                String name = base.isEmpty() ? prefixFilter : base + " " + prefixFilter;
+                partitions.add(new LdapScanPartition(name, base, prefixFilter));
+            }
+        }
+        return partitions;
+    }
+
+    static List<String> prefixFilters(String attribute, String prefixes) {
+        Set<String> distinctPrefixes = distinctPrefixes(prefixes);
+        if (distinctPrefixes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> filters = new ArrayList<>();
+        StringBuilder remainder = new StringBuilder("(!(|");
+        for (String prefix : distinctPrefixes) {
+            String filter = "(" + attribute + "=" + MigrationLdapUserIdentityDao.escapeFilterValue(prefix) + "*)";
+            filters.add(filter);
+            remainder.append(filter);
+        }
+        remainder.append("))");
+        filters.add(remainder.toString());
+        return filters;
+    }
+
+    /**
+     * @return the lower case characters of the prefixes, without duplicates, in the order given.
+     */
+    static Set<String> distinctPrefixes(String prefixes) {
+        Set<String> distinctPrefixes = new LinkedHashSet<>();
+        if (prefixes != null) {
+            for (int i = 0; i < prefixes.length(); i++) {
+                distinctPrefixes.add(String.valueOf(prefixes.charAt(i)).toLowerCase(Locale.ROOT));
+            }
+        }
+        return distinctPrefixes;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,70 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One of the directories users are migrated from, named like its {@code ldap.<name>.*} configuration.
+ */
+public class LdapSource {
+
+    static final String PRIMARY = "primary";
+
+    private final String name;
+    private final MigrationLdapUserIdentityDao dao;
+
+    public LdapSource(String name, MigrationLdapUserIdentityDao dao) {
+        this.name = name;
+        this.dao = dao;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MigrationLdapUserIdentityDao getDao() {
+        return dao;
+    }
+
+    /**
+     * Orders sources by precedence, the first one winning when a user is found in several sources.
+     *
+     * @param precedence comma separated source names, highest precedence first. Sources that are not named keep
+     *                   their order after the named ones. Null or empty keeps the order of the list.
+     * @throws IllegalArgumentException if a name is not one of the sources.
+     */
+    static List<LdapSource> inPrecedenceOrder(List<LdapSource> sources, String precedence) {
+        if (precedence == null || precedence.trim().isEmpty()) {
+            return sources;
+        }
+        Map<String, LdapSource> remaining = new LinkedHashMap<>();
+        for (LdapSource source : sources) {
+            remaining.put(source.getName(), source);
+        }
+        List<LdapSource> ordered = new ArrayList<>();
+        for (String name : precedence.split(",")) {
+            LdapSource source = remaining.remove(name.trim());
+            if (source == null) {
+                throw new IllegalArgumentException("Unknown or repeated LDAP source in precedence: " + name.trim() + ", sources are " + names(sources));
+            }
+            ordered.add(source);
+        }
+        ordered.addAll(remaining.values());
+        return ordered;
+    }
+
+    static List<String> names(List<LdapSource> sources) {
+        List<String> names = new ArrayList<>();
+        for (LdapSource source : sources) {
+            names.add(source.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
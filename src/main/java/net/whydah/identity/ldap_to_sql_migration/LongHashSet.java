@@ -0,0 +1,84 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * A compact open-addressing hash set of non-zero primitive longs, using 8 bytes per slot and no per-entry objects.
+ * Not thread-safe.
+ */
+final class LongHashSet {
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        table = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * @return true if the value was not already present.
+     */
+    boolean add(long value) {
+        checkValue(value);
+        int slot = slot(value);
+        while (table[slot] != 0L) {
+            if (table[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+        if (++size > resizeThreshold) {
+            resize();
+        }
+        return true;
+    }
+
+    boolean contains(long value) {
+        checkValue(value);
+        int slot = slot(value);
+        while (table[slot] != 0L) {
+            if (table[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(long value) {
+        return (int) (value ^ (value >>> 32)) & mask;
+    }
+
+    private void resize() {
+        long[] old = table;
+        allocate(old.length << 1);
+        for (long value : old) {
+            if (value != 0L) {
+                int slot = slot(value);
+                while (table[slot] != 0L) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private static void checkValue(long value) {
+        if (value == 0L) {
+            throw new IllegalArgumentException("0 is reserved for empty slots");
+        }
+    }
+}
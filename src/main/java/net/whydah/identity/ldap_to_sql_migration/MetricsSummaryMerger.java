@@ -0,0 +1,95 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Merges the JSON summaries written by {@link MigrationMetrics#writeJson} of the shards of a migration, which ran
+ * concurrently, into one summary of the whole migration: counters and processed counts are summed, the elapsed
+ * time is the longest of the shards, the throughput is the total number of completed users over that time, and the latency
+ * histograms are rebuilt from their buckets and added up, so the merged percentiles are those of all shards
+ * together rather than an average of percentiles.
+ * <p>
+ * Only the format written by {@link MigrationMetrics} is read, line by line, not JSON in general.
+ */
+class MetricsSummaryMerger {
+    private static final Pattern SECTION = Pattern.compile("^  \"(\\w+)\": \\{$");
+    private static final Pattern STRING_VALUE = Pattern.compile("^  \"(\\w+)\": \"([^\"]*)\",?$");
+    private static final Pattern NUMBER_VALUE = Pattern.compile("^ {2,4}\"([^\"]+)\": (-?[0-9.]+),?$");
+    private static final Pattern STAGE = Pattern.compile("^    \"([^\"]+)\": \\{\"processed\": (\\d+), \"threads\": (\\d+), \"queueCapacity\": (\\d+), \"peakQueueDepth\": (\\d+)},?$");
+    private static final Pattern LATENCY = Pattern.compile("^    \"([^\"]+)\": \\{\"count\": \\d+, \"meanMillis\": ([0-9.]+), .*\"maxMillis\": ([0-9.]+), \"buckets\": \\[(.*)]},?$");
+    private static final Pattern BUCKET = Pattern.compile("\\[(\\d+), (\\d+)]");
+
+    private String started;
+    private long elapsedSeconds;
+    private long completedUsers;
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final Map<String, long[]> stages = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    static void merge(List<Path> files, Path mergedFile) throws IOException {
+        List<String> summaries = new ArrayList<>();
+        for (Path file : files) {
+            summaries.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+        Files.write(mergedFile, merge(summaries).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String merge(List<String> summaries) {
+        MetricsSummaryMerger merger = new MetricsSummaryMerger();
+        for (String summary : summaries) {
+            merger.add(summary);
+        }
+        double usersPerSecond = merger.elapsedSeconds > 0 ? (double) merger.completedUsers / merger.elapsedSeconds : 0;
+        return MigrationMetrics.toJson(merger.started, merger.elapsedSeconds, merger.completedUsers, usersPerSecond, merger.counters, merger.stages, new ArrayList<>(merger.histograms.values()));
+    }
+
+    private void add(String summary) {
+        String section = null;
+        long summaryElapsedSeconds = 0;
+        for (String line : summary.split("\n")) {
+            Matcher matcher;
+            if ((matcher = SECTION.matcher(line)).matches()) {
+                section = matcher.group(1);
+            } else if (line.startsWith("  }")) {
+                section = null;
+            } else if (section == null && (matcher = STRING_VALUE.matcher(line)).matches()) {
+                if ("started".equals(matcher.group(1)) && (started == null || matcher.group(2).compareTo(started) < 0)) {
+                    started = matcher.group(2);
+                }
+            } else if (section == null && (matcher = NUMBER_VALUE.matcher(line)).matches()) {
+                if ("elapsedSeconds".equals(matcher.group(1))) {
+                    summaryElapsedSeconds = Long.parseLong(matcher.group(2));
+                } else if ("completedUsers".equals(matcher.group(1))) {
+                    completedUsers += Long.parseLong(matcher.group(2));
+                }
+            } else if ("counters".equals(section) && (matcher = NUMBER_VALUE.matcher(line)).matches()) {
+                counters.merge(matcher.group(1), Long.parseLong(matcher.group(2)), Long::sum);
+            } else if ("stages".equals(section) && (matcher = STAGE.matcher(line)).matches()) {
+                long[] stage = stages.computeIfAbsent(matcher.group(1), name -> new long[4]);
+                stage[0] += Long.parseLong(matcher.group(2));
+                stage[1] += Long.parseLong(matcher.group(3));
+                stage[2] += Long.parseLong(matcher.group(4));
+                stage[3] = Math.max(stage[3], Long.parseLong(matcher.group(5)));
+            } else if ("latencies".equals(section) && (matcher = LATENCY.matcher(line)).matches()) {
+                List<long[]> buckets = new ArrayList<>();
+                Matcher bucket = BUCKET.matcher(matcher.group(4));
+                while (bucket.find()) {
+                    buckets.add(new long[]{Long.parseLong(bucket.group(1)), Long.parseLong(bucket.group(2))});
+                }
+                histograms.computeIfAbsent(matcher.group(1), LatencyHistogram::new)
+                        .addSummary(buckets.toArray(new long[0][]), Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(3)));
+            }
+        }
+        // the shards ran side by side, so the merged run took as long as the slowest of them
+        elapsedSeconds = Math.max(elapsedSeconds, summaryElapsedSeconds);
+    }
+}
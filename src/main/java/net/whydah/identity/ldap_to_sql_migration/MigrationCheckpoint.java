@@ -0,0 +1,110 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Durable progress of a migration run, stored as a properties file so that an interrupted run can be resumed.
+ * <p>
+ * Paged-search cookies are only valid on the connection that issued them, so progress is recorded per scan
+ * partition: a partition is listed as complete once every user read from it is skipped or in a committed batch. A
+ * resumed run skips the complete partitions and rescans the others, where the existing-user index makes users that
+ * were committed before the interruption cheap in-memory skips. Many small partitions, e.g. by uid prefix, keep the
+ * rescan short. With the default single partition, a resumed run rescans everything.
+ * <p>
+ * The counters are those of the complete partitions, so the users of a partition that is rescanned are only counted
+ * by the run that completes it.
+ * <p>
+ * The file is written to a temporary file first and then moved into place, so a crash while saving never leaves a
+ * truncated checkpoint behind.
+ */
+class MigrationCheckpoint {
+    static final String DEFAULT_FILE = "uib-migration-checkpoint.properties";
+
+    private final Path file;
+    private final Set<String> completedPartitions = new LinkedHashSet<>();
+    // counters of the complete partitions
+    long migrated;
+    long skipped;
+    long written;
+    long failed;
+
+    MigrationCheckpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the checkpoint stored in the file, or an empty checkpoint if the file does not exist.
+     */
+    static MigrationCheckpoint load(Path file) throws IOException {
+        MigrationCheckpoint checkpoint = new MigrationCheckpoint(file);
+        if (!Files.exists(file)) {
+            return checkpoint;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        for (int i = 0; properties.getProperty("partition." + i + ".name") != null; i++) {
+            checkpoint.completedPartitions.add(properties.getProperty("partition." + i + ".name"));
+        }
+        checkpoint.migrated = Long.parseLong(properties.getProperty("count.migrated", "0"));
+        checkpoint.skipped = Long.parseLong(properties.getProperty("count.skipped", "0"));
+        checkpoint.written = Long.parseLong(properties.getProperty("count.written", "0"));
+        checkpoint.failed = Long.parseLong(properties.getProperty("count.failed", "0"));
+        return checkpoint;
+    }
+
+    /**
+     * Saves the completed partitions and their counters.
+     */
+    synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        int i = 0;
+        for (String partition : completedPartitions) {
+            properties.setProperty("partition." + i++ + ".name", partition);
+        }
+        properties.setProperty("count.migrated", String.valueOf(migrated));
+        properties.setProperty("count.skipped", String.valueOf(skipped));
+        properties.setProperty("count.written", String.valueOf(written));
+        properties.setProperty("count.failed", String.valueOf(failed));
+        Path absolute = file.toAbsolutePath();
+        Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "UIB LDAP -> SQL migration checkpoint, completed partitions and cumulative counters");
+        }
+        Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized boolean isComplete(String partition) {
+        return completedPartitions.contains(partition);
+    }
+
+    /**
+     * Records a partition as complete and adds its counters, unless it was complete already.
+     */
+    synchronized void complete(String partition, long partitionMigrated, long partitionSkipped, long partitionWritten, long partitionFailed) {
+        if (completedPartitions.add(partition)) {
+            migrated += partitionMigrated;
+            skipped += partitionSkipped;
+            written += partitionWritten;
+            failed += partitionFailed;
+        }
+    }
+
+    synchronized Collection<String> getCompletedPartitions() {
+        return new LinkedHashSet<>(completedPartitions);
+    }
+
+    Path getFile() {
+        return file;
+    }
+}
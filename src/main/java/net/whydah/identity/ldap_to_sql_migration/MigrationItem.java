@@ -0,0 +1,55 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+
+/**
+ * A user on its way through the migration pipeline. The SQL identity is filled in by the hash stage. The item is
+ * handed between stages through blocking queues, which safely publishes the fields set by the previous stage.
+ */
+class MigrationItem {
+    final LDAPUserIdentity ldapUserIdentity;
+    final PartitionProgress partition;
+    RDBMSUserIdentity rdbmsUserIdentity;
+    // the user exists in SQL and is updated rather than inserted
+    boolean update;
+
+    /**
+     * @param partition the progress of the partition the user was read from, or null if the user does not belong to
+     *                  a scan partition.
+     */
+    MigrationItem(LDAPUserIdentity ldapUserIdentity, PartitionProgress partition) {
+        this.ldapUserIdentity = ldapUserIdentity;
+        this.partition = partition;
+    }
+
+    /**
+     * Marks the user as finished, either skipped, committed to SQL, or permanently failed.
+     */
+    void done() {
+        if (partition != null) {
+            partition.done();
+        }
+    }
+
+    void skipped() {
+        if (partition != null) {
+            partition.skipped();
+        }
+        done();
+    }
+
+    void written() {
+        if (partition != null) {
+            partition.written();
+        }
+        done();
+    }
+
+    void failed() {
+        if (partition != null) {
+            partition.failed();
+        }
+        done();
+    }
+}
@@ -1,8 +1,6 @@
 package net.whydah.identity.ldap_to_sql_migration;
 
 
-import com.netflix.hystrix.exception.HystrixBadRequestException;
-import net.whydah.identity.user.identity.CommandLdapSearch;
 import net.whydah.identity.user.identity.LDAPUserIdentity;
 import org.constretto.annotation.Configuration;
 import org.slf4j.Logger;
@@ -19,24 +17,42 @@ import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 public class MigrationLdapUserIdentityDao {
     private static final Logger log = LoggerFactory.getLogger(MigrationLdapUserIdentityDao.class);
 
-    private static final String ATTRIBUTE_NAME_SN = "sn";
-    private static final String ATTRIBUTE_NAME_GIVENNAME = "givenName";
-    private static final String ATTRIBUTE_NAME_MAIL = "mail";
-    private static final String ATTRIBUTE_NAME_MOBILE = "mobile";
-    private static final String ATTRIBUTE_NAME_PASSWORD = "userpassword";
-    private static final String ATTRIBUTE_NAME_PERSONREF = "employeeNumber";
+    private static final String ATTRIBUTE_NAME_MODIFY_TIMESTAMP = "modifyTimestamp";
+
+    static final int DEFAULT_PAGE_SIZE = 500;
+    static final int DEFAULT_POOL_SIZE = 8;
+    private static final long POOL_BORROW_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long POOL_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long POOL_VALIDATE_AFTER_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
     private final Hashtable<String, String> admenv;
     private final String uidAttribute;
     private final String usernameAttribute;
     private final LdapDataMapper mapper;
+    private final String firstNameAttribute;
+    private final String lastNameAttribute;
+    private final String emailAttribute;
+    private final String personRefAttribute;
+    private final String cellPhoneAttribute;
+    private final String passwordAttribute;
+    private final int pageSize;
+    private final String searchFilter;
+    private final String[] returningAttributes;
+    private final LdapContextPool contextPool;
 
     public MigrationLdapUserIdentityDao(@Configuration("ldap.primary.url") String primaryLdapUrl,
                                         @Configuration("ldap.primary.admin.principal") String primaryAdmPrincipal,
@@ -44,6 +60,24 @@ public class MigrationLdapUserIdentityDao {
                                         @Configuration("ldap.primary.uid.attribute") String primaryUidAttribute,
                                         @Configuration("ldap.primary.username.attribute") String primaryUsernameAttribute,
                                         LdapDataMapper mapper) {
+        this(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, mapper, DEFAULT_PAGE_SIZE, null, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param pageSize     number of entries requested per page when scanning all users, 0 disables paged results.
+     * @param searchFilter filter used when scanning all users, or null to match entries that have both the uid and
+     *                     the username attribute.
+     * @param poolSize     maximum number of pooled connections shared by single user lookups.
+     */
+    public MigrationLdapUserIdentityDao(String primaryLdapUrl,
+                                        String primaryAdmPrincipal,
+                                        String primaryAdmCredentials,
+                                        String primaryUidAttribute,
+                                        String primaryUsernameAttribute,
+                                        LdapDataMapper mapper,
+                                        int pageSize,
+                                        String searchFilter,
+                                        int poolSize) {
         admenv = new Hashtable<>(4);
         admenv.put(Context.PROVIDER_URL, primaryLdapUrl);
         admenv.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
@@ -52,129 +86,313 @@ public class MigrationLdapUserIdentityDao {
         this.uidAttribute = primaryUidAttribute;
         this.usernameAttribute = primaryUsernameAttribute;
         this.mapper = mapper;
+        this.firstNameAttribute = mapper.attributeName(LdapDataMapper.Field.FIRST_NAME);
+        this.lastNameAttribute = mapper.attributeName(LdapDataMapper.Field.LAST_NAME);
+        this.emailAttribute = mapper.attributeName(LdapDataMapper.Field.EMAIL);
+        this.personRefAttribute = mapper.attributeName(LdapDataMapper.Field.PERSON_REF);
+        this.cellPhoneAttribute = mapper.attributeName(LdapDataMapper.Field.CELL_PHONE);
+        this.passwordAttribute = mapper.attributeName(LdapDataMapper.Field.PASSWORD);
+        this.pageSize = pageSize;
+        this.searchFilter = searchFilter != null ? searchFilter : defaultSearchFilter(primaryUidAttribute, primaryUsernameAttribute);
+        this.returningAttributes = new String[]{
+                primaryUidAttribute,
+                primaryUsernameAttribute,
+                firstNameAttribute,
+                lastNameAttribute,
+                emailAttribute,
+                personRefAttribute,
+                cellPhoneAttribute,
+                passwordAttribute
+        };
+        this.contextPool = new LdapContextPool(admenv, poolSize, POOL_BORROW_TIMEOUT_MILLIS, POOL_MAX_IDLE_MILLIS, POOL_VALIDATE_AFTER_IDLE_MILLIS);
+    }
+
+    static String defaultSearchFilter(String uidAttribute, String usernameAttribute) {
+        return "(&(" + uidAttribute + "=*)(" + usernameAttribute + "=*))";
+    }
+
+    public String getUidAttribute() {
+        return uidAttribute;
     }
 
     public LDAPUserIdentity getUserIndentityWithPassword(String usernameOrUid) throws NamingException {
         Attributes attributes = getUserAttributesForUsernameOrUid(usernameOrUid);
+        if (attributes == null) {
+            return null;
+        }
         LDAPUserIdentity id = fromLdapAttributesWithPassword(attributes);
         return id;
     }
 
+    /**
+     * Looks up a user by username or uid in a single search. If one entry matches on username and another on uid,
+     * the username match is preferred.
+     */
     private Attributes getUserAttributesForUsernameOrUid(String usernameOrUid) throws NamingException {
-        Attributes userAttributesForUsername = getAttributesFor(usernameAttribute, usernameOrUid);
-        if (userAttributesForUsername != null) {
-            return userAttributesForUsername;
+        String value = escapeFilterValue(usernameOrUid);
+        String filter = "(|(" + usernameAttribute + "=" + value + ")(" + uidAttribute + "=" + value + "))";
+        Attributes attributesForUid = null;
+        for (SearchResult searchResult : search(filter)) {
+            Attributes attributes = searchResult.getAttributes();
+            if (hasValue(attributes, usernameAttribute, usernameOrUid)) {
+                return attributes;
+            }
+            if (attributesForUid == null) {
+                attributesForUid = attributes;
+            }
+        }
+        if (attributesForUid == null) {
+            log.trace("getUserAttributesForUsernameOrUid found no attributes for {}", usernameOrUid);
         }
+        return attributesForUid;
+    }
 
-        log.debug("No attributes found for username=" + usernameOrUid + ", trying uid");
-        return getAttributesFor(uidAttribute, usernameOrUid);
+    /**
+     * Looks up many users by username or uid in a single search with one OR filter term per value.
+     *
+     * @return the identities found, keyed by the requested value. Values that match no entry are left out. As for
+     * single lookups, a username match is preferred over a uid match.
+     */
+    public Map<String, LDAPUserIdentity> getUserIdentitiesWithPassword(Collection<String> usernamesOrUids) throws NamingException {
+        Map<String, LDAPUserIdentity> result = new LinkedHashMap<>();
+        if (usernamesOrUids.isEmpty()) {
+            return result;
+        }
+        StringBuilder filter = new StringBuilder("(|");
+        for (String usernameOrUid : usernamesOrUids) {
+            String value = escapeFilterValue(usernameOrUid);
+            filter.append("(").append(usernameAttribute).append("=").append(value).append(")");
+            filter.append("(").append(uidAttribute).append("=").append(value).append(")");
+        }
+        filter.append(")");
+        List<SearchResult> searchResults = search(filter.toString());
+        for (String usernameOrUid : usernamesOrUids) {
+            Attributes attributesForUid = null;
+            Attributes attributesForUsername = null;
+            for (SearchResult searchResult : searchResults) {
+                Attributes attributes = searchResult.getAttributes();
+                if (hasValue(attributes, usernameAttribute, usernameOrUid)) {
+                    attributesForUsername = attributes;
+                    break;
+                }
+                if (attributesForUid == null && hasValue(attributes, uidAttribute, usernameOrUid)) {
+                    attributesForUid = attributes;
+                }
+            }
+            Attributes attributes = attributesForUsername != null ? attributesForUsername : attributesForUid;
+            if (attributes != null && attributes.get(uidAttribute) != null && attributes.get(usernameAttribute) != null) {
+                LDAPUserIdentity ldapUserIdentity = fromLdapAttributesWithPassword(attributes);
+                if (ldapUserIdentity != null) {
+                    result.put(usernameOrUid, ldapUserIdentity);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasValue(Attributes attributes, String attributeName, String value) throws NamingException {
+        Attribute attribute = attributes.get(attributeName);
+        if (attribute == null) {
+            return false;
+        }
+        for (int i = 0; i < attribute.size(); i++) {
+            Object attributeValue = attribute.get(i);
+            if (attributeValue instanceof String && value.equalsIgnoreCase((String) attributeValue)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private Attributes getAttributesFor(String attributeName, String attributeValue) throws NamingException {
+    private List<SearchResult> search(String filter) throws NamingException {
         SearchControls constraints = new SearchControls();
         constraints.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        log.trace("getAttributesForUid using {}={}", attributeName, attributeValue);
+        constraints.setReturningAttributes(returningAttributes);
+        log.trace("search using filter {}", filter);
+        List<SearchResult> results = new ArrayList<>();
+        DirContext context = contextPool.borrow();
+        boolean reusable = false;
         try {
-            SearchResult searchResult = new CommandLdapSearch(getContext(), "", "(" + attributeName + "=" + attributeValue + ")", constraints).execute();
-            if (searchResult == null) {
-                log.trace("getAttributesForUid found no attributes for {}={}.", attributeName, attributeValue);
-                return null;
-            }
-            return searchResult.getAttributes();
-        } catch (HystrixBadRequestException he) {
-            if (he.getCause() instanceof NamingException) {
-                NamingException pre = (NamingException) he.getCause();
-                if (pre instanceof PartialResultException) {
-                    log.trace("Partial Search only. Due to speed optimization, full search in LDAP/AD is not enabled. {}: {}, PartialResultException: {}", attributeName, attributeValue, pre.getMessage());
-                } else {
-                    log.trace("NamingException. {}: {}", attributeName, attributeValue);
-                    throw pre;
+            NamingEnumeration<SearchResult> enumeration = context.search("", filter, constraints);
+            try {
+                while (enumeration.hasMore()) {
+                    results.add(enumeration.next());
                 }
+            } finally {
+                enumeration.close();
+            }
+            reusable = true;
+        } catch (PartialResultException pre) {
+            log.trace("Partial Search only. Due to speed optimization, full search in LDAP/AD is not enabled. filter: {}, PartialResultException: {}", filter, pre.getMessage());
+            reusable = true;
+        } catch (NamingException e) {
+            log.trace("NamingException. filter: {}", filter);
+            throw e;
+        } finally {
+            // a context left in an unknown state by any other exception is closed rather than handed out again
+            if (reusable) {
+                contextPool.release(context);
+            } else {
+                contextPool.invalidate(context);
             }
-            throw he;
         }
+        return results;
     }
 
-    private DirContext getContext() throws NamingException {
-        return new InitialDirContext(admenv);
+    public void close() {
+        contextPool.close();
     }
 
-
     public Iterable<LDAPUserIdentity> allUsersWithPassword() throws NamingException {
+        return allUsersWithPassword(LdapScanPartition.ALL);
+    }
+
+    public Iterable<LDAPUserIdentity> allUsersWithPassword(LdapScanPartition partition) throws NamingException {
+        return usersWithPassword(partition.getBase(), partition.combinedFilter(searchFilter));
+    }
+
+    /**
+     * Scans the users of a partition whose entry was modified at or after the given time, according to the
+     * {@code modifyTimestamp} operational attribute.
+     */
+    public Iterable<LDAPUserIdentity> modifiedUsersWithPassword(LdapScanPartition partition, Instant since) throws NamingException {
+        return usersWithPassword(partition.getBase(), modifiedSinceFilter(partition.combinedFilter(searchFilter), since));
+    }
+
+    private static String modifiedSinceFilter(String filter, Instant since) {
+        return "(&" + filter + "(" + ATTRIBUTE_NAME_MODIFY_TIMESTAMP + ">=" + SyncHighWaterMark.formatGeneralizedTime(since) + "))";
+    }
+
+    /**
+     * The current time of the LDAP server, to be read before a scan of modified users, so that every entry modified
+     * during the scan has a modifyTimestamp at or after it. Servers that publish {@code currentTime} in the root DSE,
+     * like Active Directory, are asked for it. Otherwise, or if the root DSE cannot be read, the newest modifyTimestamp
+     * of the users modified since the given time is used, which is as late as the server clock is known to have been.
+     *
+     * @return the time, or null if the server does not publish it and no user has been modified since the given time.
+     */
+    public Instant serverTime(Instant since) throws NamingException {
+        Instant currentTime = rootDseCurrentTime();
+        if (currentTime != null) {
+            return currentTime;
+        }
+        return newestModifyTimestamp(since);
+    }
+
+    Instant newestModifyTimestamp(Instant since) throws NamingException {
+        Instant newest = null;
+        for (Instant modified : scan("", modifiedSinceFilter(searchFilter, since), new String[]{uidAttribute, usernameAttribute, ATTRIBUTE_NAME_MODIFY_TIMESTAMP},
+                attrs -> {
+                    String modifyTimestamp = getAttribValue(attrs, ATTRIBUTE_NAME_MODIFY_TIMESTAMP);
+                    return modifyTimestamp != null ? SyncHighWaterMark.parseGeneralizedTime(modifyTimestamp) : null;
+                })) {
+            if (newest == null || modified.isAfter(newest)) {
+                newest = modified;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return the currentTime of the root DSE, or null if it is missing or the root DSE cannot be read.
+     */
+    private Instant rootDseCurrentTime() {
+        Hashtable<String, String> rootEnv = new Hashtable<>(admenv);
+        rootEnv.put(Context.PROVIDER_URL, serverUrl(admenv.get(Context.PROVIDER_URL)));
+        try {
+            DirContext rootDse = new InitialDirContext(rootEnv);
+            try {
+                String currentTime = getAttribValue(rootDse.getAttributes("", new String[]{"currentTime"}), "currentTime");
+                return currentTime != null ? SyncHighWaterMark.parseGeneralizedTime(currentTime) : null;
+            } finally {
+                rootDse.close();
+            }
+        } catch (NamingException e) {
+            log.warn("Could not read currentTime from the root DSE, using the newest modifyTimestamp instead: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the url without the base DN, e.g. {@code ldap://host:389/} for {@code ldap://host:389/dc=example,dc=com}.
+     */
+    static String serverUrl(String url) {
+        int scheme = url.indexOf("://");
+        int path = url.indexOf('/', scheme < 0 ? 0 : scheme + 3);
+        return path < 0 ? url + "/" : url.substring(0, path + 1);
+    }
+
+    /**
+     * Scans the uid and username of every user of a partition, without the other attributes, for a cheap first pass
+     * over a directory.
+     *
+     * @return pairs of uid and username.
+     */
+    public Iterable<String[]> allUserKeys(LdapScanPartition partition) throws NamingException {
+        return scan(partition.getBase(), partition.combinedFilter(searchFilter), new String[]{uidAttribute, usernameAttribute},
+                attrs -> new String[]{getAttribValue(attrs, uidAttribute), getAttribValue(attrs, usernameAttribute)});
+    }
+
+    private Iterable<LDAPUserIdentity> usersWithPassword(String base, String filter) throws NamingException {
+        return scan(base, filter, returningAttributes, this::fromLdapAttributesWithPassword);
+    }
+
+    interface EntryMapper<T> {
+        /**
+         * @return the value of an entry that has both a uid and a username, or null to leave the entry out.
+         */
+        T map(Attributes attributes) throws NamingException;
+    }
+
+    private <T> Iterable<T> scan(String base, String filter, String[] attributes, final EntryMapper<T> entryMapper) throws NamingException {
         SearchControls constraints = new SearchControls();
         constraints.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        final NamingEnumeration objs = new InitialDirContext(admenv).search("", "(objectClass=*)", constraints);
+        constraints.setReturningAttributes(attributes);
+        final LdapPagedSearch objs = new LdapPagedSearch(admenv, base, filter, constraints, pageSize);
 
-        return new Iterable<LDAPUserIdentity>() {
+        return new Iterable<T>() {
             @Override
-            public Iterator<LDAPUserIdentity> iterator() {
-                return new Iterator<LDAPUserIdentity>() {
-                    LDAPUserIdentity next = null;
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    T next = null;
 
                     @Override
                     public boolean hasNext() {
                         if (next != null) {
                             return true;
                         }
-                        try {
-                            while (objs.hasMore()) {
-                                next = doGetNext();
-                                if (next != null) {
-                                    return true;
-                                }
+                        while (objs.hasNext()) {
+                            next = doGetNext(objs.next());
+                            if (next != null) {
+                                return true;
                             }
-                            return false;
-                        } catch (NamingException e) {
-                            throw new RuntimeException(e);
                         }
+                        return false;
                     }
 
                     @Override
-                    public LDAPUserIdentity next() {
+                    public T next() {
                         if (!hasNext()) {
                             throw new NoSuchElementException("next() called after end of iterator, please guard with hasNext()");
                         }
-                        LDAPUserIdentity result = next;
+                        T result = next;
                         next = null;
                         return result;
                     }
 
-                    private LDAPUserIdentity doGetNext() {
-                        //Each item is a SearchResult object
+                    private T doGetNext(SearchResult match) {
+                        //Get the node's attributes
+                        Attributes attrs = match.getAttributes();
+                        if (attrs == null) {
+                            return null;
+                        }
+                        Attribute uidAttributeValue = attrs.get(uidAttribute);
+                        Attribute usernameAttributeValue = attrs.get(usernameAttribute);
+                        if (uidAttributeValue == null || usernameAttributeValue == null) {
+                            return null;
+                        }
                         try {
-                            for (int i = 0; ; i++) {
-
-                                SearchResult match;
-                                try {
-                                    if (i > 0 && !objs.hasMore()) {
-                                        return null;
-                                    }
-                                    match = (SearchResult) objs.next();
-                                } catch (NoSuchElementException e) {
-                                    return null;
-                                }
-
-                                if (match == null) {
-                                    return null;
-                                }
-
-                                //Get the node's attributes
-                                Attributes attrs = match.getAttributes();
-
-                                if (attrs == null) {
-                                    return null;
-                                }
-
-                                Attribute uidAttributeValue = attrs.get(uidAttribute);
-                                Attribute usernameAttributeValue = attrs.get(usernameAttribute);
-
-                                if (uidAttributeValue != null && usernameAttributeValue != null) {
-                                    LDAPUserIdentity ldapUser = fromLdapAttributesWithPassword(attrs);
-                                    if (ldapUser != null) {
-                                        return ldapUser;
-                                    }
-                                }
-                            }
+                            return entryMapper.map(attrs);
                         } catch (NamingException e) {
                             throw new RuntimeException(e);
                         }
@@ -184,16 +402,46 @@ public class MigrationLdapUserIdentityDao {
         };
     }
 
-    private LDAPUserIdentity fromLdapAttributesWithPassword(Attributes attributes) throws NamingException {
+    /**
+     * Escapes a value for use in an LDAP search filter as described in RFC 4515.
+     */
+    static String escapeFilterValue(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\5c");
+                    break;
+                case '*':
+                    sb.append("\\2a");
+                    break;
+                case '(':
+                    sb.append("\\28");
+                    break;
+                case ')':
+                    sb.append("\\29");
+                    break;
+                case '\u0000':
+                    sb.append("\\00");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    LDAPUserIdentity fromLdapAttributesWithPassword(Attributes attributes) throws NamingException {
         return mapper.toLDAPUserIdentity(
                 (String) attributes.get(uidAttribute).get(),
                 (String) attributes.get(usernameAttribute).get(),
-                getAttribValue(attributes, ATTRIBUTE_NAME_GIVENNAME),
-                getAttribValue(attributes, ATTRIBUTE_NAME_SN),
-                getAttribValue(attributes, ATTRIBUTE_NAME_MAIL),
-                getAttribValue(attributes, ATTRIBUTE_NAME_PERSONREF),
-                getAttribValue(attributes, ATTRIBUTE_NAME_MOBILE),
-                getBinaryAttribValueAsUtf8String(attributes, ATTRIBUTE_NAME_PASSWORD)
+                getAttribValue(attributes, firstNameAttribute),
+                getAttribValue(attributes, lastNameAttribute),
+                getAttribValue(attributes, emailAttribute),
+                getAttribValue(attributes, personRefAttribute),
+                getAttribValue(attributes, cellPhoneAttribute),
+                getBinaryAttribValueAsUtf8String(attributes, passwordAttribute)
         );
     }
 
@@ -206,13 +454,20 @@ public class MigrationLdapUserIdentityDao {
         }
     }
 
-    private String getBinaryAttribValueAsUtf8String(Attributes attributes, String attributeName) throws NamingException {
+    /**
+     * userPassword has a binary syntax and is returned as bytes, but an attribute it is remapped to may have a string
+     * syntax and be returned as a string.
+     */
+    static String getBinaryAttribValueAsUtf8String(Attributes attributes, String attributeName) throws NamingException {
         Attribute attribute = attributes.get(attributeName);
-        if (attribute != null) {
-            return new String((byte[]) attribute.get(0), StandardCharsets.UTF_8);
-        } else {
+        if (attribute == null) {
             return null;
         }
+        Object value = attribute.get(0);
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+        return (String) value;
     }
 }
 
@@ -0,0 +1,241 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms of the operations of a migration, and the queue depths and throughput of its pipeline.
+ * <p>
+ * The histograms are recorded by the stages as they work. {@link #sample()} is meant to be called once a second,
+ * it tracks the peak queue depth of every stage and prints a report line every {@code reportIntervalSeconds}.
+ * At the end of a run the metrics can be written as a JSON summary, and while running they can be read over JMX.
+ */
+class MigrationMetrics implements MigrationMetricsMBean {
+    static final String OBJECT_NAME = "net.whydah.identity.ldap_to_sql_migration:type=MigrationMetrics";
+
+    final LatencyHistogram ldapFetch = new LatencyHistogram("ldap.fetch");
+    final LatencyHistogram map = new LatencyHistogram("map");
+    final LatencyHistogram bcrypt = new LatencyHistogram("bcrypt");
+    final LatencyHistogram sqlExistenceCheck = new LatencyHistogram("sql.exists");
+    final LatencyHistogram sqlInsert = new LatencyHistogram("sql.insert.batch");
+    final LatencyHistogram sqlUpdate = new LatencyHistogram("sql.update.batch");
+    private final List<LatencyHistogram> histograms = Arrays.asList(ldapFetch, map, bcrypt, sqlExistenceCheck, sqlInsert, sqlUpdate);
+
+    private final LongSupplier completedUsers;
+    private final long reportIntervalSeconds;
+    private volatile long startNanos = System.nanoTime();
+    private volatile Instant started = Instant.now();
+    private volatile List<PipelineStage<?>> stages = Collections.emptyList();
+    private volatile long expectedUsers;
+    private final Map<String, Integer> peakQueueDepths = new LinkedHashMap<>();
+    private long samples;
+    private long lastReportNanos = startNanos;
+    private long lastReportCompleted;
+    private ObjectName registeredName;
+
+    /**
+     * @param completedUsers the number of users that have been through the whole pipeline, skipped or written.
+     * @param reportIntervalSeconds seconds between report lines, 0 to not print any.
+     */
+    MigrationMetrics(LongSupplier completedUsers, long reportIntervalSeconds) {
+        this.completedUsers = completedUsers;
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+
+    /**
+     * Starts measuring throughput for a new pipeline run over the given stages.
+     */
+    synchronized void start(List<PipelineStage<?>> stages) {
+        this.stages = new ArrayList<>(stages);
+        peakQueueDepths.clear();
+        startNanos = System.nanoTime();
+        started = Instant.now();
+        lastReportNanos = startNanos;
+        lastReportCompleted = completedUsers.getAsLong();
+    }
+
+    /**
+     * Sets the number of users the run is expected to complete, which adds an ETA to the report lines.
+     */
+    void setExpectedUsers(long expectedUsers) {
+        this.expectedUsers = expectedUsers;
+    }
+
+    synchronized void sample() {
+        for (PipelineStage<?> stage : stages) {
+            peakQueueDepths.merge(stage.getName(), stage.queueDepth(), Math::max);
+        }
+        if (reportIntervalSeconds > 0 && ++samples % reportIntervalSeconds == 0) {
+            System.out.printf("%s%n", reportLine());
+        }
+    }
+
+    synchronized String reportLine() {
+        long now = System.nanoTime();
+        long completed = completedUsers.getAsLong();
+        double rate = (completed - lastReportCompleted) / Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        lastReportNanos = now;
+        lastReportCompleted = completed;
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "Progress: %d users, %.1f users/s", completed, rate));
+        double averageRate = getUsersPerSecond();
+        if (expectedUsers > 0 && averageRate > 0) {
+            long remainingSeconds = (long) (Math.max(0, expectedUsers - completed) / averageRate);
+            line.append(String.format(Locale.ROOT, ", %d%% of %d, ETA %d:%02d:%02d", Math.min(100, completed * 100 / expectedUsers), expectedUsers,
+                    remainingSeconds / 3600, remainingSeconds / 60 % 60, remainingSeconds % 60));
+        }
+        for (PipelineStage<?> stage : stages) {
+            line.append(String.format(Locale.ROOT, ", %s queue %d/%d", stage.getName(), stage.queueDepth(), stage.queueCapacity()));
+        }
+        line.append(" | p50/p99 ms");
+        for (LatencyHistogram histogram : histograms) {
+            if (histogram.getCount() > 0) {
+                line.append(String.format(Locale.ROOT, " %s %.2f/%.2f", histogram.getName(), histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.99)));
+            }
+        }
+        return line.toString();
+    }
+
+    @Override
+    public double getUsersPerSecond() {
+        return getCompletedUsers() / Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public long getCompletedUsers() {
+        return completedUsers.getAsLong();
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String[] getStages() {
+        List<String> result = new ArrayList<>();
+        for (PipelineStage<?> stage : stages) {
+            result.add(String.format(Locale.ROOT, "%s: queue %d/%d, threads %d/%d, processed %d", stage.getName(), stage.queueDepth(), stage.queueCapacity(), stage.getActiveThreads(), stage.getMaxThreads(), stage.getProcessedCount()));
+        }
+        return result.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getLatencies() {
+        List<String> result = new ArrayList<>();
+        for (LatencyHistogram histogram : histograms) {
+            result.add(summary(histogram));
+        }
+        return result.toArray(new String[0]);
+    }
+
+    static String summary(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%s: count %d, mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f ms", histogram.getName(), histogram.getCount(), histogram.getMeanMillis(),
+                histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.9), histogram.getPercentileMillis(0.99), histogram.getMaxMillis());
+    }
+
+    List<LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+
+    void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new StandardMBean(this, MigrationMetricsMBean.class), name);
+        registeredName = name;
+    }
+
+    void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // already gone
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Writes the summary of the run, with the given counters, the peak queue depth of every stage and the latency
+     * histograms including their buckets, so that the summaries of several runs can be merged.
+     */
+    synchronized void writeJson(Path file, Map<String, Long> counters) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(toJson(counters));
+        }
+    }
+
+    synchronized String toJson(Map<String, Long> counters) {
+        Map<String, long[]> stageSummaries = new LinkedHashMap<>();
+        for (PipelineStage<?> stage : stages) {
+            stageSummaries.put(stage.getName(), new long[]{stage.getProcessedCount(), stage.getActiveThreads(), stage.queueCapacity(), peakQueueDepths.getOrDefault(stage.getName(), 0)});
+        }
+        return toJson(started.toString(), getElapsedSeconds(), getCompletedUsers(), getUsersPerSecond(), counters, stageSummaries, histograms);
+    }
+
+    /**
+     * @param stages per stage name the processed count, threads, queue capacity and peak queue depth.
+     */
+    static String toJson(String started, long elapsedSeconds, long completedUsers, double usersPerSecond, Map<String, Long> counters, Map<String, long[]> stages, List<LatencyHistogram> histograms) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"started\": \"").append(started).append("\",\n");
+        json.append("  \"elapsedSeconds\": ").append(elapsedSeconds).append(",\n");
+        json.append("  \"completedUsers\": ").append(completedUsers).append(",\n");
+        json.append("  \"usersPerSecond\": ").append(String.format(Locale.ROOT, "%.1f", usersPerSecond)).append(",\n");
+        json.append("  \"counters\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            json.append(separator).append("    \"").append(counter.getKey()).append("\": ").append(counter.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"stages\": {");
+        separator = "\n";
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            long[] summary = stage.getValue();
+            json.append(separator).append(String.format(Locale.ROOT, "    \"%s\": {\"processed\": %d, \"threads\": %d, \"queueCapacity\": %d, \"peakQueueDepth\": %d}",
+                    stage.getKey(), summary[0], summary[1], summary[2], summary[3]));
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+        json.append("  \"latencies\": {");
+        separator = "\n";
+        for (LatencyHistogram histogram : histograms) {
+            json.append(separator).append(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"meanMillis\": %.3f, \"p50Millis\": %.3f, \"p90Millis\": %.3f, \"p99Millis\": %.3f, \"maxMillis\": %.3f, \"buckets\": [",
+                    histogram.getName(), histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(0.5), histogram.getPercentileMillis(0.9), histogram.getPercentileMillis(0.99), histogram.getMaxMillis()));
+            String bucketSeparator = "";
+            for (long[] bucket : histogram.buckets()) {
+                json.append(bucketSeparator).append('[').append(bucket[0]).append(", ").append(bucket[1]).append(']');
+                bucketSeparator = ", ";
+            }
+            json.append("]}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+}
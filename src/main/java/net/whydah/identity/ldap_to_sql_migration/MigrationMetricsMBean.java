@@ -0,0 +1,24 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * JMX view of the metrics of a running migration, registered as
+ * {@value MigrationMetrics#OBJECT_NAME}.
+ */
+public interface MigrationMetricsMBean {
+
+    double getUsersPerSecond();
+
+    long getCompletedUsers();
+
+    long getElapsedSeconds();
+
+    /**
+     * @return one entry per stage: name, queue depth and capacity, active threads and items processed.
+     */
+    String[] getStages();
+
+    /**
+     * @return one entry per measured operation: name, count, mean, p50, p90, p99 and max in milliseconds.
+     */
+    String[] getLatencies();
+}
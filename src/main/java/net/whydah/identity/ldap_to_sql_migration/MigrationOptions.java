@@ -0,0 +1,253 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line options of the migration.
+ */
+public class MigrationOptions {
+
+    static final int DEFAULT_DB_POOL_SIZE = 8;
+
+    boolean help = false;
+    boolean dryRun = false;
+    int maxUsersToMigrate = Integer.MAX_VALUE;
+    boolean printPasswords = false;
+    String specificUser = null;
+    String userListFile = null;
+    int lookupBatchSize = 50;
+    int pageSize = MigrationLdapUserIdentityDao.DEFAULT_PAGE_SIZE;
+    String searchFilter = null;
+    List<String> partitionBases = new ArrayList<>();
+    String partitionPrefixes = null;
+    int producerThreads = 4;
+    int ldapPoolSize = MigrationLdapUserIdentityDao.DEFAULT_POOL_SIZE;
+    int mapThreads = 2;
+    int hashThreads = Runtime.getRuntime().availableProcessors();
+    int writerThreads = 4;
+    int batchSize = 100;
+    int dbPoolSize = DEFAULT_DB_POOL_SIZE;
+    int queueSize = 40;
+    boolean autoTune = false;
+    boolean virtualThreads = false;
+    String checkpointFile = null;
+    long checkpointIntervalSeconds = 30;
+    boolean resume = false;
+    boolean incremental = false;
+    String since = null;
+    String syncStateFile = SyncHighWaterMark.DEFAULT_FILE;
+    long pollIntervalSeconds = 0;
+    String exportSnapshotFile = null;
+    String importSnapshotFile = null;
+    long metricsIntervalSeconds = 10;
+    String metricsFile = null;
+    boolean jmx = false;
+    String auditFile = null;
+    long expectedUsers = 0;
+    boolean verify = false;
+    boolean upsert = false;
+    MigrationShard shard = null;
+    String mergeMetricsFiles = null;
+    double ldapRate = 0;
+    double writeRate = 0;
+    long ldapLatencyTargetMillis = 0;
+    long sqlLatencyTargetMillis = 0;
+    int retries = 3;
+    String deadLetterDirectory = ".";
+    double maxErrorRate = 0.1;
+    String mappingRulesFile;
+    String sourcePrecedence;
+
+    static String usage() {
+        return "Usage: java -jar uib-ldap-to-sql-migration.jar [--dry-run] [--print-passwords] [-u <usernameOrUid>] [-f <fileWithUsernamesOrUids>] [--lookup-batch-size <valuesPerSearch>] [-n <maxUsersToMigrate>]"
+                + " [--page-size <ldapPageSize>] [--filter <ldapSearchFilter>]"
+                + " [--partition-base <relativeBaseDn>]... [--partition-prefixes <uidPrefixCharacters>] [--producers <producerThreads>]"
+                + " [--ldap-pool-size <ldapConnections>] [--map-threads <mapThreads>] [--hash-threads <bcryptThreads>] [--writers <writerThreads>] [--batch-size <rowsPerBatch>] [--db-pool-size <dbConnections>]"
+                + " [--queue-size <itemsPerStageQueue>] [--auto-tune] [--virtual-threads]"
+                + " [--checkpoint <checkpointFile>] [--checkpoint-interval <seconds>] [--resume]"
+                + " [--incremental] [--since <modifyTimestamp>] [--sync-state <syncStateFile>] [--poll <seconds>]"
+                + " [--export-snapshot <snapshotFile[.gz]>] [--import-snapshot <snapshotFile>]"
+                + " [--metrics-interval <seconds>] [--metrics-file <summary.json>] [--jmx]"
+                + " [--audit-file <auditFile>] [--expected-users <usersForEta>] [--verify] [--upsert]"
+                + " [--shard <k>/<N>] [--merge-metrics <summary.json>,<summary.json>...]"
+                + " [--ldap-rate <entriesPerSecond>] [--write-rate <rowsPerSecond>] [--ldap-latency-target <millisPerPage>] [--sql-latency-target <millisPerBatch>]"
+                + " [--retries <retriesOfTransientErrors>] [--dead-letter-dir <directory>] [--max-error-rate <failedShare>]"
+                + " [--mapping-rules <mappingRules.properties>] [--source-precedence <source>,<source>...]"
+                + System.lineSeparator()
+                + System.lineSeparator() + "--resume skips the scan partitions that a checkpoint lists as complete. Without --partition-base or --partition-prefixes"
+                + " there is a single partition, which is only complete at the end, so resuming saves no LDAP reads."
+                + System.lineSeparator() + "--upsert skips users whose row is up to date. Plaintext passwords are only compared by whether a user has one,"
+                + " so a change of only the password is not migrated; with --incremental all modified users are updated.";
+    }
+
+    static MigrationOptions parse(String[] args) {
+        MigrationOptions options = new MigrationOptions();
+        for (int i = 0; i < args.length; i++) {
+            if ("-h".equalsIgnoreCase(args[i]) || "--help".equalsIgnoreCase(args[i])) {
+                options.help = true;
+                return options;
+            }
+            if ("--dry-run".equalsIgnoreCase(args[i])) {
+                options.dryRun = true;
+            } else if ("-n".equalsIgnoreCase(args[i])) {
+                options.maxUsersToMigrate = Integer.parseInt(value(args, i++));
+            } else if ("--print-passwords".equalsIgnoreCase(args[i])) {
+                options.printPasswords = true;
+            } else if ("-u".equalsIgnoreCase(args[i])) {
+                options.specificUser = value(args, i++);
+            } else if ("-f".equalsIgnoreCase(args[i])) {
+                options.userListFile = value(args, i++);
+            } else if ("--lookup-batch-size".equalsIgnoreCase(args[i])) {
+                options.lookupBatchSize = Integer.parseInt(value(args, i++));
+            } else if ("--page-size".equalsIgnoreCase(args[i])) {
+                options.pageSize = Integer.parseInt(value(args, i++));
+            } else if ("--filter".equalsIgnoreCase(args[i])) {
+                options.searchFilter = value(args, i++);
+            } else if ("--partition-base".equalsIgnoreCase(args[i])) {
+                options.partitionBases.add(value(args, i++));
+            } else if ("--partition-prefixes".equalsIgnoreCase(args[i])) {
+                options.partitionPrefixes = value(args, i++);
+            } else if ("--producers".equalsIgnoreCase(args[i])) {
+                options.producerThreads = Integer.parseInt(value(args, i++));
+            } else if ("--ldap-pool-size".equalsIgnoreCase(args[i])) {
+                options.ldapPoolSize = Integer.parseInt(value(args, i++));
+            } else if ("--map-threads".equalsIgnoreCase(args[i])) {
+                options.mapThreads = Integer.parseInt(value(args, i++));
+            } else if ("--hash-threads".equalsIgnoreCase(args[i])) {
+                options.hashThreads = Integer.parseInt(value(args, i++));
+            } else if ("--writers".equalsIgnoreCase(args[i])) {
+                options.writerThreads = Integer.parseInt(value(args, i++));
+            } else if ("--batch-size".equalsIgnoreCase(args[i])) {
+                options.batchSize = Integer.parseInt(value(args, i++));
+            } else if ("--db-pool-size".equalsIgnoreCase(args[i])) {
+                options.dbPoolSize = Integer.parseInt(value(args, i++));
+            } else if ("--queue-size".equalsIgnoreCase(args[i])) {
+                options.queueSize = Integer.parseInt(value(args, i++));
+            } else if ("--auto-tune".equalsIgnoreCase(args[i])) {
+                options.autoTune = true;
+            } else if ("--virtual-threads".equalsIgnoreCase(args[i])) {
+                options.virtualThreads = true;
+            } else if ("--checkpoint".equalsIgnoreCase(args[i])) {
+                options.checkpointFile = value(args, i++);
+            } else if ("--checkpoint-interval".equalsIgnoreCase(args[i])) {
+                options.checkpointIntervalSeconds = Long.parseLong(value(args, i++));
+            } else if ("--resume".equalsIgnoreCase(args[i])) {
+                options.resume = true;
+            } else if ("--incremental".equalsIgnoreCase(args[i])) {
+                options.incremental = true;
+            } else if ("--since".equalsIgnoreCase(args[i])) {
+                options.since = value(args, i++);
+                SyncHighWaterMark.parseTimestamp(options.since);
+                options.incremental = true;
+            } else if ("--sync-state".equalsIgnoreCase(args[i])) {
+                options.syncStateFile = value(args, i++);
+            } else if ("--poll".equalsIgnoreCase(args[i])) {
+                options.pollIntervalSeconds = Long.parseLong(value(args, i++));
+                options.incremental = true;
+            } else if ("--export-snapshot".equalsIgnoreCase(args[i])) {
+                options.exportSnapshotFile = value(args, i++);
+            } else if ("--import-snapshot".equalsIgnoreCase(args[i])) {
+                options.importSnapshotFile = value(args, i++);
+            } else if ("--metrics-interval".equalsIgnoreCase(args[i])) {
+                options.metricsIntervalSeconds = Long.parseLong(value(args, i++));
+            } else if ("--metrics-file".equalsIgnoreCase(args[i])) {
+                options.metricsFile = value(args, i++);
+            } else if ("--jmx".equalsIgnoreCase(args[i])) {
+                options.jmx = true;
+            } else if ("--audit-file".equalsIgnoreCase(args[i])) {
+                options.auditFile = value(args, i++);
+            } else if ("--expected-users".equalsIgnoreCase(args[i])) {
+                options.expectedUsers = Long.parseLong(value(args, i++));
+            } else if ("--verify".equalsIgnoreCase(args[i])) {
+                options.verify = true;
+            } else if ("--upsert".equalsIgnoreCase(args[i])) {
+                options.upsert = true;
+            } else if ("--shard".equalsIgnoreCase(args[i])) {
+                options.shard = MigrationShard.parse(value(args, i++));
+            } else if ("--merge-metrics".equalsIgnoreCase(args[i])) {
+                options.mergeMetricsFiles = value(args, i++);
+            } else if ("--ldap-rate".equalsIgnoreCase(args[i])) {
+                options.ldapRate = Double.parseDouble(value(args, i++));
+            } else if ("--write-rate".equalsIgnoreCase(args[i])) {
+                options.writeRate = Double.parseDouble(value(args, i++));
+            } else if ("--ldap-latency-target".equalsIgnoreCase(args[i])) {
+                options.ldapLatencyTargetMillis = Long.parseLong(value(args, i++));
+            } else if ("--sql-latency-target".equalsIgnoreCase(args[i])) {
+                options.sqlLatencyTargetMillis = Long.parseLong(value(args, i++));
+            } else if ("--retries".equalsIgnoreCase(args[i])) {
+                options.retries = Integer.parseInt(value(args, i++));
+            } else if ("--dead-letter-dir".equalsIgnoreCase(args[i])) {
+                options.deadLetterDirectory = value(args, i++);
+            } else if ("--max-error-rate".equalsIgnoreCase(args[i])) {
+                options.maxErrorRate = Double.parseDouble(value(args, i++));
+            } else if ("--mapping-rules".equalsIgnoreCase(args[i])) {
+                options.mappingRulesFile = value(args, i++);
+            } else if ("--source-precedence".equalsIgnoreCase(args[i])) {
+                options.sourcePrecedence = value(args, i++);
+            }
+        }
+        if (options.resume && options.checkpointFile == null) {
+            options.checkpointFile = MigrationCheckpoint.DEFAULT_FILE;
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i) {
+        if ((i + 1) < args.length) {
+            return args[i + 1];
+        }
+        throw new IllegalArgumentException("Missing value for option " + args[i]);
+    }
+
+    @Override
+    public String toString() {
+        return "dry-run=" + dryRun +
+                ", maxUsers=" + maxUsersToMigrate +
+                ", print-passwords=" + printPasswords +
+                ", specificUser=" + specificUser +
+                ", userListFile=" + userListFile +
+                ", lookupBatchSize=" + lookupBatchSize +
+                ", pageSize=" + pageSize +
+                ", filter=" + searchFilter +
+                ", partitionBases=" + partitionBases +
+                ", partitionPrefixes=" + partitionPrefixes +
+                ", producers=" + producerThreads +
+                ", ldapPoolSize=" + ldapPoolSize +
+                ", mapThreads=" + mapThreads +
+                ", hashThreads=" + hashThreads +
+                ", writers=" + writerThreads +
+                ", batchSize=" + batchSize +
+                ", dbPoolSize=" + dbPoolSize +
+                ", queueSize=" + queueSize +
+                ", autoTune=" + autoTune +
+                ", virtualThreads=" + virtualThreads +
+                ", checkpoint=" + checkpointFile +
+                ", checkpointInterval=" + checkpointIntervalSeconds +
+                ", resume=" + resume +
+                ", incremental=" + incremental +
+                ", since=" + since +
+                ", syncState=" + syncStateFile +
+                ", poll=" + pollIntervalSeconds +
+                ", exportSnapshot=" + exportSnapshotFile +
+                ", importSnapshot=" + importSnapshotFile +
+                ", metricsInterval=" + metricsIntervalSeconds +
+                ", metricsFile=" + metricsFile +
+                ", jmx=" + jmx +
+                ", auditFile=" + auditFile +
+                ", expectedUsers=" + expectedUsers +
+                ", verify=" + verify +
+                ", upsert=" + upsert +
+                ", shard=" + shard +
+                ", mergeMetrics=" + mergeMetricsFiles +
+                ", ldapRate=" + ldapRate +
+                ", writeRate=" + writeRate +
+                ", ldapLatencyTarget=" + ldapLatencyTargetMillis +
+                ", sqlLatencyTarget=" + sqlLatencyTargetMillis +
+                ", retries=" + retries +
+                ", deadLetterDir=" + deadLetterDirectory +
+                ", maxErrorRate=" + maxErrorRate +
+                ", mappingRules=" + mappingRulesFile +
+                ", sourcePrecedence=" + sourcePrecedence;
+    }
+}
@@ -0,0 +1,44 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * One of N disjoint slices of the users, by a stable hash of the uid, so that N migration processes can each
+ * migrate their own shard concurrently without any coordination between them. The hash is the
+ * {@link Fingerprints fingerprint} of the uid, which does not depend on the JVM, the host or the order the users
+ * are read in.
+ */
+class MigrationShard {
+    private final int index;
+    private final int count;
+
+    MigrationShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard must be k/N with 0 <= k < N, was " + index + "/" + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param shard {@code k/N}, the k-th of N shards counting from 0.
+     */
+    static MigrationShard parse(String shard) {
+        int slash = shard.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Shard must be k/N, was " + shard);
+        }
+        try {
+            return new MigrationShard(Integer.parseInt(shard.substring(0, slash).trim()), Integer.parseInt(shard.substring(slash + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard must be k/N, was " + shard);
+        }
+    }
+
+    boolean contains(String uid) {
+        return uid != null && Long.remainderUnsigned(Fingerprints.of(uid), count) == index;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
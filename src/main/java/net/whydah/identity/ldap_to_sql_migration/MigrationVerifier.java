@@ -0,0 +1,248 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the users in LDAP with the rows in SQL after a migration, by {@link UserIdentityDigest content digest},
+ * and reports the users missing in SQL, the extra users in SQL and the users whose content differs.
+ * <p>
+ * The comparison is split into uid ranges by the same prefixes as the scan partitions, or by {@link #DEFAULT_PREFIXES}
+ * if the scan is not split by prefix, and the ranges are verified in parallel. For each range the LDAP side is read
+ * into a map of uid to digest, and the SQL rows of the range are streamed and joined against it, so memory is bounded
+ * by the largest ranges being verified at a time rather than the user base: more prefixes give smaller ranges. Hash
+ * joining rather than merge joining keeps the comparison independent of how the database collates uids compared to
+ * how LDAP matches them.
+ * <p>
+ * A uid found more than once in LDAP is reported as a duplicate and fails the verification, as only one of the
+ * entries can have been migrated.
+ */
+class MigrationVerifier {
+    private static final int FETCH_SIZE = 10000;
+    private static final int MAX_REPORTED_USERS = 1000;
+    private static final char LIKE_ESCAPE = '!';
+    /**
+     * Splits the uids into about one range per character of UUIDs and of most other generated uids, plus the
+     * remainder.
+     */
+    static final String DEFAULT_PREFIXES = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private final MigrationLdapUserIdentityDao ldapUserIdentityDao;
+    private final DataSource dataSource;
+    final List<Range> ranges;
+    private final int threads;
+
+    final AtomicLong ldapCount = new AtomicLong();
+    final AtomicLong sqlCount = new AtomicLong();
+    final AtomicLong matchingCount = new AtomicLong();
+    final AtomicLong missingCount = new AtomicLong();
+    final AtomicLong extraCount = new AtomicLong();
+    final AtomicLong differentCount = new AtomicLong();
+    final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicInteger reportedCount = new AtomicInteger();
+
+    MigrationVerifier(MigrationLdapUserIdentityDao ldapUserIdentityDao, DataSource dataSource, List<String> partitionBases, String partitionPrefixes, int threads) {
+        this.ldapUserIdentityDao = ldapUserIdentityDao;
+        this.dataSource = dataSource;
+        this.ranges = ranges(partitionBases, ldapUserIdentityDao.getUidAttribute(), partitionPrefixes == null || partitionPrefixes.isEmpty() ? DEFAULT_PREFIXES : partitionPrefixes);
+        this.threads = threads;
+    }
+
+    /**
+     * @return true if every range could be compared and LDAP and SQL hold the same users with the same content.
+     */
+    boolean verify() throws InterruptedException {
+        System.out.printf("VERIFY LDAP <-> SQL in %d uid range(s)%n", ranges.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+        boolean complete = true;
+        try {
+            List<Future<?>> verifications = new ArrayList<>();
+            for (Range range : ranges) {
+                verifications.add(executor.submit(() -> {
+                    verify(range);
+                    return null;
+                }));
+            }
+            for (int i = 0; i < verifications.size(); i++) {
+                try {
+                    verifications.get(i).get();
+                } catch (ExecutionException e) {
+                    complete = false;
+                    System.out.printf("Error while verifying uid range %s%n", ranges.get(i).name);
+                    e.getCause().printStackTrace();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (reportedCount.get() > MAX_REPORTED_USERS) {
+            System.out.printf("... %d more users not listed%n", reportedCount.get() - MAX_REPORTED_USERS);
+        }
+        System.out.printf("Users in LDAP: %d, in SQL: %d, matching: %d, missing in SQL: %d, extra in SQL: %d, different: %d, duplicate in LDAP: %d%s%n",
+                ldapCount.get(), sqlCount.get(), matchingCount.get(), missingCount.get(), extraCount.get(), differentCount.get(), duplicateCount.get(),
+                complete ? "" : ", verification incomplete");
+        return complete && missingCount.get() == 0 && extraCount.get() == 0 && differentCount.get() == 0 && duplicateCount.get() == 0;
+    }
+
+    private void verify(Range range) throws Exception {
+        Map<String, Long> ldapDigests = new HashMap<>();
+        for (LdapScanPartition partition : range.partitions) {
+            addLdapDigests(ldapDigests, ldapUserIdentityDao.allUsersWithPassword(partition));
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false); // some drivers only stream result sets inside a transaction
+            try (PreparedStatement statement = connection.prepareStatement(UserIdentitySql.SELECT_FOR_VERIFY + range.sqlCondition)) {
+                statement.setFetchSize(FETCH_SIZE);
+                for (int i = 0; i < range.sqlParameters.size(); i++) {
+                    statement.setString(i + 1, range.sqlParameters.get(i));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        compare(ldapDigests, resultSet);
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+        for (String uid : ldapDigests.keySet()) {
+            missingCount.incrementAndGet();
+            report("MISSING in SQL", uid);
+        }
+    }
+
+    /**
+     * Adds the digests of the users read from LDAP. The first entry of a duplicate uid is kept to compare with SQL.
+     */
+    void addLdapDigests(Map<String, Long> ldapDigests, Iterable<LDAPUserIdentity> ldapUserIdentities) {
+        for (LDAPUserIdentity ldapUserIdentity : ldapUserIdentities) {
+            ldapCount.incrementAndGet();
+            if (ldapDigests.putIfAbsent(ldapUserIdentity.getUid(), UserIdentityDigest.of(ldapUserIdentity)) != null) {
+                duplicateCount.incrementAndGet();
+                report("DUPLICATE in LDAP", ldapUserIdentity.getUid());
+            }
+        }
+    }
+
+    private void compare(Map<String, Long> ldapDigests, ResultSet row) throws SQLException {
+        sqlCount.incrementAndGet();
+        String uid = row.getString(1);
+        Long ldapDigest = ldapDigests.remove(uid);
+        if (ldapDigest == null) {
+            extraCount.incrementAndGet();
+            report("EXTRA in SQL", uid);
+            return;
+        }
+        long sqlDigest = UserIdentityDigest.ofRow(uid, row.getString(2), row.getString(3), row.getString(4), row.getString(5), row.getString(6), row.getString(7), row.getString(8), row.getString(9));
+        if (sqlDigest == ldapDigest) {
+            matchingCount.incrementAndGet();
+        } else {
+            differentCount.incrementAndGet();
+            report("DIFFERENT", uid);
+        }
+    }
+
+    private void report(String difference, String uid) {
+        if (reportedCount.incrementAndGet() <= MAX_REPORTED_USERS) {
+            System.out.printf("%s: %s%n", difference, uid);
+        }
+    }
+
+    /**
+     * One range per uid prefix plus the remainder, each covering every search base, or a single range over
+     * everything if no prefixes are given.
+     */
+    static List<Range> ranges(List<String> bases, String uidAttribute, String prefixes) {
+        List<String> searchBases = bases == null || bases.isEmpty() ? Collections.singletonList("") : bases;
+        List<String> prefixFilters = LdapScanPartition.prefixFilters(uidAttribute, prefixes);
+        if (prefixFilters.isEmpty()) {
+            return Collections.singletonList(new Range("all", partitions(searchBases, null), "", Collections.<String>emptyList()));
+        }
+        List<Range> ranges = new ArrayList<>();
+        List<String> allPatterns = new ArrayList<>();
+        StringBuilder remainder = new StringBuilder(" WHERE NOT (");
+        int i = 0;
+        for (String prefix : LdapScanPartition.distinctPrefixes(prefixes)) {
+            List<String> patterns = likePatterns(prefix);
+            String condition = likeCondition(patterns.size());
+            ranges.add(new Range(prefixFilters.get(i), partitions(searchBases, prefixFilters.get(i)), " WHERE " + condition, patterns));
+            remainder.append(i == 0 ? "" : " OR ").append(condition);
+            allPatterns.addAll(patterns);
+            i++;
+        }
+        remainder.append(")");
+        String remainderFilter = prefixFilters.get(prefixFilters.size() - 1);
+        ranges.add(new Range(remainderFilter, partitions(searchBases, remainderFilter), remainder.toString(), allPatterns));
+        return ranges;
+    }
+
+    private static List<LdapScanPartition> partitions(List<String> bases, String filter) {
+        List<LdapScanPartition> partitions = new ArrayList<>();
+        for (String base : bases) {
+            String name = filter == null ? base : base.isEmpty() ? filter : base + " " + filter;
+            partitions.add(new LdapScanPartition(name, base, filter));
+        }
+        return partitions;
+    }
+
+    /**
+     * LDAP matches uids case insensitively, so a prefix range covers both cases in SQL.
+     */
+    private static List<String> likePatterns(String prefix) {
+        Set<String> patterns = new LinkedHashSet<>();
+        for (String casedPrefix : new String[]{prefix.toLowerCase(Locale.ROOT), prefix.toUpperCase(Locale.ROOT)}) {
+            StringBuilder pattern = new StringBuilder();
+            for (char c : casedPrefix.toCharArray()) {
+                if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+                    pattern.append(LIKE_ESCAPE);
+                }
+                pattern.append(c);
+            }
+            patterns.add(pattern.append('%').toString());
+        }
+        return new ArrayList<>(patterns);
+    }
+
+    private static String likeCondition(int patterns) {
+        StringBuilder condition = new StringBuilder("(");
+        for (int i = 0; i < patterns; i++) {
+            condition.append(i == 0 ? "" : " OR ").append("id LIKE ? ESCAPE '").append(LIKE_ESCAPE).append("'");
+        }
+        return condition.append(")").toString();
+    }
+
+    static class Range {
+        final String name;
+        final List<LdapScanPartition> partitions;
+        final String sqlCondition;
+        final List<String> sqlParameters;
+
+        Range(String name, List<LdapScanPartition> partitions, String sqlCondition, List<String> sqlParameters) {
+            this.name = name;
+            this.partitions = partitions;
+            this.sqlCondition = sqlCondition;
+            this.sqlParameters = sqlParameters;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how far a scan partition has come through the pipeline. A partition is complete when its LDAP search has
+ * been read to the end and every user read from it is done, i.e. skipped or in a committed batch. The outcomes of
+ * the users are counted per partition, for the checkpoint to record the counts of complete partitions only.
+ */
+class PartitionProgress {
+    private final LdapScanPartition partition;
+    private final AtomicLong extracted = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean extractionFinished;
+
+    PartitionProgress(LdapScanPartition partition) {
+        this.partition = partition;
+    }
+
+    LdapScanPartition getPartition() {
+        return partition;
+    }
+
+    String getName() {
+        return partition.getName();
+    }
+
+    void extracted() {
+        extracted.incrementAndGet();
+    }
+
+    void done() {
+        done.incrementAndGet();
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    void written() {
+        written.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Called when the LDAP search of the partition has been read to the end without errors.
+     */
+    void extractionFinished() {
+        extractionFinished = true;
+    }
+
+    long getExtractedCount() {
+        return extracted.get();
+    }
+
+    long getDoneCount() {
+        return done.get();
+    }
+
+    long getSkippedCount() {
+        return skipped.get();
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    long getFailedCount() {
+        return failed.get();
+    }
+
+    boolean isComplete() {
+        return extractionFinished && done.get() == extracted.get();
+    }
+}
@@ -0,0 +1,64 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.Base64;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * The password hash schemes of LDAP {@code userPassword} values ({@code {SCHEME}hash}, RFC 2307) that are not
+ * hashed with BCrypt again, see {@link PreHashedUserIdentity}. A value only counts as hashed if its hash part is well
+ * formed for the scheme, so a plaintext password that happens to start with a brace is still treated as plaintext.
+ */
+enum PasswordScheme {
+    BCRYPT(0, false),
+    SHA(20, false),
+    SSHA(20, true),
+    SHA256(32, false),
+    SSHA256(32, true),
+    SHA512(64, false),
+    SSHA512(64, true);
+
+    private static final Pattern BCRYPT_HASH = Pattern.compile("\\$2[abxy]?\\$\\d{2}\\$[./A-Za-z0-9]{53}");
+
+    private final int digestLength;
+    private final boolean salted;
+
+    PasswordScheme(int digestLength, boolean salted) {
+        this.digestLength = digestLength;
+        this.salted = salted;
+    }
+
+    /**
+     * @return the scheme of a hashed password, or null if the password is plaintext or uses a scheme that is not
+     * recognized.
+     */
+    static PasswordScheme of(String password) {
+        if (password == null || !password.startsWith("{")) {
+            return null;
+        }
+        int end = password.indexOf('}');
+        if (end < 2) {
+            return null;
+        }
+        PasswordScheme scheme;
+        try {
+            scheme = valueOf(password.substring(1, end).replace("-", "").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return scheme.isHash(password.substring(end + 1)) ? scheme : null;
+    }
+
+    private boolean isHash(String hash) {
+        if (this == BCRYPT) {
+            return BCRYPT_HASH.matcher(hash).matches();
+        }
+        byte[] decoded;
+        try {
+            decoded = Base64.getDecoder().decode(hash);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return salted ? decoded.length > digestLength : decoded.length == digestLength;
+    }
+}
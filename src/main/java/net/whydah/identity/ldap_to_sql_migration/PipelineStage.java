@@ -0,0 +1,288 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the migration pipeline: a bounded input queue drained by a fixed number of threads that hand the
+ * items to a handler, typically putting the results on the next stage. Because every queue is bounded, a slow stage
+ * blocks the stage before it, and backpressure flows all the way back to the LDAP readers.
+ * <p>
+ * With a batch size above 1, a thread collects up to that many items before calling the handler, waiting at most the
+ * linger time for a batch to fill up.
+ * <p>
+ * A stage can be created with more threads than it starts out using. Only the first {@link #getActiveThreads()}
+ * threads take items, the rest idle until the active count is raised, which lets a controller resize the stage at
+ * runtime without creating or killing threads.
+ * <p>
+ * In virtual-thread mode ({@link #withVirtualThreads()}) a single dispatcher thread takes the batches and runs each
+ * one as its own task on a virtual thread, with a semaphore bounding the number of tasks in flight to the active
+ * thread count. This suits stages that mostly block on JDBC or LDAP, where thousands of cheap virtual threads can
+ * wait without the stack memory of platform threads, while the semaphore keeps them within the connection pool.
+ * <p>
+ * All stages of a pipeline share one stop flag. A handler that throws sets it, which makes every stage stop taking
+ * new items and every blocked {@link #put} give up.
+ */
+class PipelineStage<I> {
+    private static final long POLL_MILLIS = 50;
+
+    interface Handler<I> {
+        void handle(List<I> items) throws Exception;
+    }
+
+    private final String name;
+    private final int maxThreads;
+    private volatile int activeThreads;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final BlockingQueue<I> queue;
+    private final AtomicBoolean stop;
+    private final Handler<I> handler;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong processedCount = new AtomicLong();
+    private CountDownLatch finishedThreads;
+    private ExecutorService virtualThreadExecutor;
+    private ResizableSemaphore inFlight;
+
+    PipelineStage(String name, int threads, int maxThreads, int queueCapacity, int batchSize, long lingerMillis, AtomicBoolean stop, Handler<I> handler) {
+        this.name = name;
+        this.activeThreads = Math.max(1, threads);
+        this.maxThreads = Math.max(this.activeThreads, maxThreads);
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = lingerMillis;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.stop = stop;
+        this.handler = handler;
+    }
+
+    PipelineStage(String name, int threads, int queueCapacity, int batchSize, long lingerMillis, AtomicBoolean stop, Handler<I> handler) {
+        this(name, threads, threads, queueCapacity, batchSize, lingerMillis, stop, handler);
+    }
+
+    PipelineStage(String name, int threads, int queueCapacity, AtomicBoolean stop, Handler<I> handler) {
+        this(name, threads, threads, queueCapacity, 1, 0, stop, handler);
+    }
+
+    /**
+     * Switches this stage to run each batch as a task on a virtual thread. Must be called before {@link #start()}.
+     *
+     * @throws UnsupportedOperationException when running on a JDK without virtual threads.
+     */
+    PipelineStage<I> withVirtualThreads() {
+        virtualThreadExecutor = VirtualThreads.newThreadPerTaskExecutor();
+        return this;
+    }
+
+    void start() {
+        if (virtualThreadExecutor != null) {
+            inFlight = new ResizableSemaphore(activeThreads);
+            finishedThreads = new CountDownLatch(1);
+            new Thread(new Dispatcher(), name + "-dispatch").start();
+            return;
+        }
+        finishedThreads = new CountDownLatch(maxThreads);
+        for (int i = 0; i < maxThreads; i++) {
+            new Thread(new Worker(i), name + "-" + i).start();
+        }
+    }
+
+    /**
+     * Puts an item on the queue of this stage, blocking while the queue is full.
+     *
+     * @return false if the pipeline was stopped before the item could be queued.
+     */
+    boolean put(I item) throws InterruptedException {
+        while (!stop.get()) {
+            if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets the threads drain what is left on the queue and waits for them to finish. Nothing may be put on this
+     * stage after it has been called.
+     */
+    void finish() throws InterruptedException {
+        closed.set(true);
+        finishedThreads.await();
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    int queueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * @return the number of items handed to the handler so far.
+     */
+    long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    int getActiveThreads() {
+        return activeThreads;
+    }
+
+    int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Sets how many of the threads of this stage take items, between 1 and {@link #getMaxThreads()}.
+     */
+    synchronized void setActiveThreads(int threads) {
+        int previous = activeThreads;
+        activeThreads = Math.max(1, Math.min(maxThreads, threads));
+        if (inFlight != null) {
+            inFlight.resize(activeThreads - previous);
+        }
+    }
+
+    /**
+     * Takes the next batch from the queue, waiting at most the poll interval for its first item.
+     *
+     * @return false if no item arrived.
+     */
+    private boolean poll(List<I> batch) throws InterruptedException {
+        I first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+        if (batchSize > 1) {
+            fill(batch);
+        }
+        return true;
+    }
+
+    private void fill(List<I> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            I next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private boolean isDrained() {
+        return closed.get() && queue.isEmpty();
+    }
+
+    private void handle(List<I> batch) {
+        try {
+            handler.handle(batch);
+        } catch (Exception e) {
+            System.out.printf("Error in %s stage, stopping migration%n", name);
+            e.printStackTrace();
+            stop.set(true);
+        }
+        processedCount.addAndGet(batch.size());
+    }
+
+    class Worker implements Runnable {
+        private final int index;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            List<I> batch = new ArrayList<>(batchSize);
+            try {
+                while (!stop.get()) {
+                    if (index >= activeThreads) {
+                        if (isDrained()) {
+                            return;
+                        }
+                        Thread.sleep(POLL_MILLIS);
+                        continue;
+                    }
+                    if (!poll(batch)) {
+                        if (isDrained()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    handle(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finishedThreads.countDown();
+            }
+        }
+    }
+
+    class Dispatcher implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (!stop.get()) {
+                    final List<I> batch = new ArrayList<>(batchSize);
+                    if (!poll(batch)) {
+                        if (isDrained()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    inFlight.acquire();
+                    virtualThreadExecutor.execute(() -> {
+                        try {
+                            handle(batch);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finishedThreads.countDown();
+            }
+        }
+    }
+
+    static class ResizableSemaphore extends Semaphore {
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        void resize(int delta) {
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                reducePermits(-delta);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+
+/**
+ * The SQL identity of a user whose LDAP password is already hashed, see {@link PasswordScheme}. UIB only verifies
+ * the BCrypt hashes of its own, peppered, {@code BCryptService} and compares the password column as plaintext, so
+ * neither column can hold the LDAP hash: UIB would reject the real password and accept the hash itself as one. The
+ * user is stored without a password, and has to set a new one, without spending a BCrypt run on it.
+ */
+class PreHashedUserIdentity extends RDBMSUserIdentity {
+    private final LDAPUserIdentity ldapUserIdentity;
+
+    PreHashedUserIdentity(LDAPUserIdentity ldapUserIdentity) {
+        this.ldapUserIdentity = ldapUserIdentity;
+    }
+
+    @Override
+    public String getUid() {
+        return ldapUserIdentity.getUid();
+    }
+
+    @Override
+    public String getUsername() {
+        return ldapUserIdentity.getUsername();
+    }
+
+    @Override
+    public String getFirstName() {
+        return ldapUserIdentity.getFirstName();
+    }
+
+    @Override
+    public String getLastName() {
+        return ldapUserIdentity.getLastName();
+    }
+
+    @Override
+    public String getPersonRef() {
+        return ldapUserIdentity.getPersonRef();
+    }
+
+    @Override
+    public String getEmail() {
+        return ldapUserIdentity.getEmail();
+    }
+
+    @Override
+    public String getCellPhone() {
+        return ldapUserIdentity.getCellPhone();
+    }
+
+    @Override
+    public String getPassword() {
+        return null;
+    }
+
+    @Override
+    public String getPasswordBCrypt() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return ldapUserIdentity.toString();
+    }
+}
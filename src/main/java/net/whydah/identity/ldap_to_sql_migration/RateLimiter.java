@@ -0,0 +1,86 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that limits the rate of an operation, e.g. LDAP entries read or SQL rows written per second. The
+ * bucket holds at most one second worth of permits, so an idle period allows a burst of at most one second. A
+ * caller that takes more permits than are available goes into debt and sleeps until the debt is paid, which keeps
+ * large batches from starving small ones.
+ * <p>
+ * A rate of 0 means unlimited. The rate can be changed at any time, e.g. by a {@link LatencyThrottle}.
+ */
+class RateLimiter {
+    private final String name;
+    private final AtomicLong acquired = new AtomicLong();
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param permitsPerSecond the rate, or 0 for unlimited.
+     */
+    RateLimiter(String name, double permitsPerSecond) {
+        this.name = name;
+        this.rate = Math.max(0, permitsPerSecond);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Takes the given number of permits, sleeping as long as it takes to stay within the rate.
+     */
+    void acquire(int permits) throws InterruptedException {
+        acquired.addAndGet(permits);
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private synchronized long reserve(int permits) {
+        if (rate <= 0) {
+            return 0;
+        }
+        refill();
+        tokens -= permits;
+        return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - lastRefillNanos) / 1e9 * rate);
+        }
+        lastRefillNanos = now;
+    }
+
+    /**
+     * @param permitsPerSecond the new rate, or 0 for unlimited.
+     */
+    synchronized void setRate(double permitsPerSecond) {
+        refill();
+        if (rate <= 0) {
+            tokens = 0;
+        }
+        rate = Math.max(0, permitsPerSecond);
+        tokens = Math.min(tokens, rate);
+    }
+
+    /**
+     * @return the rate in permits per second, or 0 if unlimited.
+     */
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the number of permits taken so far, also while unlimited.
+     */
+    long getAcquired() {
+        return acquired.get();
+    }
+}
@@ -0,0 +1,86 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import javax.naming.CommunicationException;
+import javax.naming.ServiceUnavailableException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries operations that fail with a transient error, such as a dropped connection or a deadlock, with bounded
+ * exponential backoff: the n-th retry waits a random time between half and all of {@code initialBackoff * 2^n},
+ * capped at the max backoff, so that workers that failed together do not retry together. Any other error, such as
+ * a constraint violation, fails at once, as retrying cannot fix it.
+ */
+class RetryPolicy {
+    static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    interface Operation<T> {
+        T run() throws Exception;
+    }
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Runs the operation, retrying it while it fails with a transient error and retries are left.
+     *
+     * @throws Exception the error of the last attempt.
+     */
+    <T> T call(Operation<T> operation) throws Exception {
+        for (int retry = 0; ; retry++) {
+            try {
+                return operation.run();
+            } catch (Exception e) {
+                if (!shouldRetry(e, retry)) {
+                    throw e;
+                }
+                backoff(retry);
+            }
+        }
+    }
+
+    boolean shouldRetry(Throwable error, int retry) {
+        return retry < maxRetries && isTransient(error);
+    }
+
+    void backoff(int retry) throws InterruptedException {
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(retry, 20));
+        TimeUnit.MILLISECONDS.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+    }
+
+    /**
+     * @return true if the error, or any of its causes, is one that may go away by itself: a transient or
+     * recoverable SQL error, a connection error (SQL state class 08) or a transaction rollback such as a deadlock
+     * (class 40), or a lost or unavailable LDAP connection.
+     */
+    static boolean isTransient(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            if (e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                    || e instanceof CommunicationException || e instanceof ServiceUnavailableException) {
+                return true;
+            }
+            if (e instanceof SQLException) {
+                String sqlState = ((SQLException) e).getSQLState();
+                if (sqlState != null && (sqlState.startsWith("08") || sqlState.startsWith("40"))) {
+                    return true;
+                }
+            }
+            // e.g. TransientDataAccessException and RecoverableDataAccessException of the Spring based dao
+            String name = e.getClass().getSimpleName();
+            if (name.startsWith("Transient") || name.startsWith("Recoverable")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
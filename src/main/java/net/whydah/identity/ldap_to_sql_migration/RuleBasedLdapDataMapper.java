@@ -0,0 +1,354 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Maps LDAP attributes to user identities by the rules of a properties file, read and compiled once at startup:
+ * <pre>
+ * firstName.attribute=givenName
+ * firstName.rules=trim, collapseWhitespace, replace(á=a;é=e), emptyToNull
+ * cellPhone.rules=strip( -), default(n/a)
+ * email.rules=trim, lowercase, maxLength(254)
+ * </pre>
+ * {@code <field>.attribute} reads a field from another attribute than the default, for every field but the uid and
+ * username, whose attributes are configured with the LDAP settings. {@code <field>.rules} is a comma separated list
+ * of transforms applied in order:
+ * <ul>
+ * <li>{@code trim}, {@code lowercase}, {@code uppercase}, {@code collapseWhitespace}: as named</li>
+ * <li>{@code emptyToNull}: a blank value becomes null</li>
+ * <li>{@code default(value)}: a null or empty value becomes the given value</li>
+ * <li>{@code replace(a=b;c=d)}: replaces single characters, with an empty replacement removing the character</li>
+ * <li>{@code strip(chars)}: removes the given characters</li>
+ * <li>{@code asciiFold}: removes diacritics, so {@code Ágnes} becomes {@code Agnes}</li>
+ * <li>{@code maxLength(n)}: cuts the value to at most n characters</li>
+ * </ul>
+ * Unknown fields, transforms and malformed rules fail the startup with an {@link IllegalArgumentException} rather
+ * than the first user. The compiled transforms return their input unchanged, without allocating, when there is
+ * nothing to change, which is the common case, and character replacement uses a lookup table instead of a regex.
+ */
+public class RuleBasedLdapDataMapper implements LdapDataMapper {
+
+    interface Transform {
+        String apply(String value);
+    }
+
+    private final Map<Field, String> attributes;
+    private final Transform[][] transforms;
+
+    RuleBasedLdapDataMapper(Map<Field, String> attributes, Map<Field, List<Transform>> transforms) {
+        this.attributes = new EnumMap<>(Field.class);
+        this.attributes.putAll(attributes);
+        this.transforms = new Transform[Field.values().length][];
+        for (Field field : Field.values()) {
+            List<Transform> fieldTransforms = transforms.get(field);
+            this.transforms[field.ordinal()] = fieldTransforms == null ? new Transform[0] : fieldTransforms.toArray(new Transform[0]);
+        }
+    }
+
+    public static RuleBasedLdapDataMapper load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return compile(properties);
+    }
+
+    static RuleBasedLdapDataMapper compile(Properties properties) {
+        Map<Field, String> attributes = new EnumMap<>(Field.class);
+        Map<Field, List<Transform>> transforms = new EnumMap<>(Field.class);
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            Field field = dot < 0 ? null : field(key.substring(0, dot));
+            String value = properties.getProperty(key).trim();
+            String kind = dot < 0 ? "" : key.substring(dot + 1);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown mapping rule " + key + ", expected <field>.attribute or <field>.rules with field one of " + fieldKeys());
+            } else if ("attribute".equals(kind)) {
+                if (field.getDefaultAttribute() == null) {
+                    throw new IllegalArgumentException("The " + field.getKey() + " attribute is configured with the LDAP settings, not in mapping rules");
+                }
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Empty attribute name in mapping rule " + key);
+                }
+                attributes.put(field, value);
+            } else if ("rules".equals(kind)) {
+                transforms.put(field, compileRules(value));
+            } else {
+                throw new IllegalArgumentException("Unknown mapping rule " + key + ", expected <field>.attribute or <field>.rules");
+            }
+        }
+        return new RuleBasedLdapDataMapper(attributes, transforms);
+    }
+
+    @Override
+    public String attributeName(Field field) {
+        String attribute = attributes.get(field);
+        return attribute != null ? attribute : field.getDefaultAttribute();
+    }
+
+    @Override
+    public LDAPUserIdentity toLDAPUserIdentity(String uid, String username, String firstname, String lastname, String email, String personRef, String cellPhone, String password) {
+        try {
+            return new LDAPUserIdentity(
+                    apply(Field.UID, uid),
+                    apply(Field.USERNAME, username),
+                    apply(Field.FIRST_NAME, firstname),
+                    apply(Field.LAST_NAME, lastname),
+                    apply(Field.EMAIL, email),
+                    apply(Field.PASSWORD, password),
+                    apply(Field.CELL_PHONE, cellPhone),
+                    apply(Field.PERSON_REF, personRef)
+            );
+        } catch (Exception e) {
+            System.out.printf("Unable to create LDAPUserIdentity from attributes. uid='%s', username='%s', firstname='%s', lastname='%s', email='%s', personRef='%s', cellPhone='%s', password='%s'%n",
+                    uid, username, firstname, lastname, email, personRef, cellPhone, "*****");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    String apply(Field field, String value) {
+        for (Transform transform : transforms[field.ordinal()]) {
+            value = transform.apply(value);
+        }
+        return value;
+    }
+
+    private static Field field(String key) {
+        for (Field field : Field.values()) {
+            if (field.getKey().equalsIgnoreCase(key)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static String fieldKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Field field : Field.values()) {
+            keys.add(field.getKey());
+        }
+        return keys.toString();
+    }
+
+    static List<Transform> compileRules(String rules) {
+        List<Transform> transforms = new ArrayList<>();
+        int i = 0;
+        while (i < rules.length()) {
+            int open = rules.indexOf('(', i);
+            int comma = rules.indexOf(',', i);
+            String rule;
+            String argument = null;
+            if (open >= 0 && (comma < 0 || open < comma)) {
+                int close = rules.indexOf(')', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Missing ) in mapping rules: " + rules);
+                }
+                rule = rules.substring(i, open).trim();
+                argument = rules.substring(open + 1, close);
+                int next = rules.indexOf(',', close);
+                if (!rules.substring(close + 1, next < 0 ? rules.length() : next).trim().isEmpty()) {
+                    throw new IllegalArgumentException("Unexpected text after " + rule + "(...) in mapping rules: " + rules);
+                }
+                i = next < 0 ? rules.length() : next + 1;
+            } else {
+                rule = rules.substring(i, comma < 0 ? rules.length() : comma).trim();
+                i = comma < 0 ? rules.length() : comma + 1;
+            }
+            if (!rule.isEmpty()) {
+                transforms.add(transform(rule, argument));
+            }
+        }
+        return transforms;
+    }
+
+    private static Transform transform(String rule, String argument) {
+        switch (rule.toLowerCase(Locale.ROOT)) {
+            case "trim":
+                return noArgument(rule, argument, value -> value == null ? null : value.trim());
+            case "lowercase":
+                return noArgument(rule, argument, value -> value == null ? null : value.toLowerCase(Locale.ROOT));
+            case "uppercase":
+                return noArgument(rule, argument, value -> value == null ? null : value.toUpperCase(Locale.ROOT));
+            case "collapsewhitespace":
+                return noArgument(rule, argument, RuleBasedLdapDataMapper::collapseWhitespace);
+            case "emptytonull":
+                return noArgument(rule, argument, value -> value == null || value.trim().isEmpty() ? null : value);
+            case "asciifold":
+                return noArgument(rule, argument, RuleBasedLdapDataMapper::asciiFold);
+            case "default":
+                final String defaultValue = required(rule, argument);
+                return value -> value == null || value.isEmpty() ? defaultValue : value;
+            case "replace":
+                return new CharacterTable(replacements(required(rule, argument)));
+            case "strip":
+                Map<Character, String> removals = new HashMap<>();
+                for (char c : required(rule, argument).toCharArray()) {
+                    removals.put(c, "");
+                }
+                return new CharacterTable(removals);
+            case "maxlength":
+                final int maxLength;
+                try {
+                    maxLength = Integer.parseInt(required(rule, argument).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("maxLength expects a number, got " + argument);
+                }
+                if (maxLength < 0) {
+                    throw new IllegalArgumentException("maxLength must not be negative, got " + maxLength);
+                }
+                return value -> value == null || value.length() <= maxLength ? value : value.substring(0, maxLength);
+            default:
+                throw new IllegalArgumentException("Unknown mapping transform " + rule + ", expected one of "
+                        + Arrays.asList("trim", "lowercase", "uppercase", "collapseWhitespace", "emptyToNull", "asciiFold", "default(value)", "replace(a=b;...)", "strip(chars)", "maxLength(n)"));
+        }
+    }
+
+    private static Transform noArgument(String rule, String argument, Transform transform) {
+        if (argument != null) {
+            throw new IllegalArgumentException("Mapping transform " + rule + " takes no argument");
+        }
+        return transform;
+    }
+
+    private static String required(String rule, String argument) {
+        if (argument == null || argument.isEmpty()) {
+            throw new IllegalArgumentException("Mapping transform " + rule + " needs an argument, " + rule + "(...)");
+        }
+        return argument;
+    }
+
+    private static Map<Character, String> replacements(String argument) {
+        Map<Character, String> replacements = new HashMap<>();
+        for (String pair : argument.split(";")) {
+            int equals = pair.indexOf('=');
+            if (equals != 1) {
+                throw new IllegalArgumentException("replace expects single characters as in replace(á=a;ø=o), got " + pair);
+            }
+            replacements.put(pair.charAt(0), pair.substring(2));
+        }
+        return replacements;
+    }
+
+    static String collapseWhitespace(String value) {
+        if (value == null) {
+            return null;
+        }
+        int length = value.length();
+        boolean collapse = false;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) && (c != ' ' || i == 0 || i == length - 1 || (i + 1 < length && Character.isWhitespace(value.charAt(i + 1))))) {
+                collapse = true;
+                break;
+            }
+        }
+        if (!collapse) {
+            return value;
+        }
+        StringBuilder collapsed = new StringBuilder(length);
+        boolean space = false;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = collapsed.length() > 0;
+            } else {
+                if (space) {
+                    collapsed.append(' ');
+                    space = false;
+                }
+                collapsed.append(c);
+            }
+        }
+        return collapsed.toString();
+    }
+
+    static String asciiFold(String value) {
+        if (value == null) {
+            return null;
+        }
+        int i = 0;
+        while (i < value.length() && value.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == value.length()) {
+            return value;
+        }
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int j = 0; j < decomposed.length(); j++) {
+            char c = decomposed.charAt(j);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                folded.append(c);
+            }
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Replaces or removes single characters through a table indexed by the character, with a lookup map only for
+     * characters beyond the table.
+     */
+    static class CharacterTable implements Transform {
+        private static final int TABLE_SIZE = 0x0800;
+
+        private final String[] table = new String[TABLE_SIZE];
+        private final Map<Character, String> beyondTable = new HashMap<>();
+
+        CharacterTable(Map<Character, String> replacements) {
+            for (Map.Entry<Character, String> replacement : replacements.entrySet()) {
+                char c = replacement.getKey();
+                if (c < TABLE_SIZE) {
+                    table[c] = replacement.getValue();
+                } else {
+                    beyondTable.put(c, replacement.getValue());
+                }
+            }
+        }
+
+        private String replacement(char c) {
+            return c < TABLE_SIZE ? table[c] : beyondTable.isEmpty() ? null : beyondTable.get(c);
+        }
+
+        @Override
+        public String apply(String value) {
+            if (value == null) {
+                return null;
+            }
+            int length = value.length();
+            int first = 0;
+            while (first < length && replacement(value.charAt(first)) == null) {
+                first++;
+            }
+            if (first == length) {
+                return value;
+            }
+            StringBuilder replaced = new StringBuilder(length).append(value, 0, first);
+            for (int i = first; i < length; i++) {
+                char c = value.charAt(i);
+                String replacement = replacement(c);
+                if (replacement == null) {
+                    replaced.append(c);
+                } else {
+                    replaced.append(replacement);
+                }
+            }
+            return replaced.toString();
+        }
+    }
+}
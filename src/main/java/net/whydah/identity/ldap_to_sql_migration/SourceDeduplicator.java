@@ -0,0 +1,66 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.util.Locale;
+
+/**
+ * Decides which source a user is migrated from when several directories are merged. A user is identified by its uid
+ * and by its username, both compared without case as LDAP does, and belongs to the source with the highest precedence
+ * that has either of them. A user of a lower source that shares the uid or the username with a user of a higher
+ * source is a duplicate and left out.
+ * <p>
+ * The decision is made before the migration, from the uids and usernames of every source, claimed source by source
+ * in order of precedence. The full scans of the sources can then run concurrently and still leave out the same users
+ * as if they had run one after the other. A user that was added to a source after its keys were claimed is accepted
+ * if it collides with no claimed user. Fingerprints are kept instead of the strings, about 50 bytes per user.
+ * <p>
+ * {@link #claim} is not thread-safe and must be called for the sources in order, highest precedence first.
+ * {@link #accept} may be called from many threads once all keys have been claimed.
+ */
+final class SourceDeduplicator {
+
+    private final LongHashSet claimedUids;
+    private final LongHashSet claimedUsernames;
+    private final LongHashSet[] accepted;
+
+    SourceDeduplicator(int sources, int expectedUsers) {
+        this.claimedUids = new LongHashSet(expectedUsers);
+        this.claimedUsernames = new LongHashSet(expectedUsers);
+        this.accepted = new LongHashSet[sources];
+        for (int i = 0; i < sources; i++) {
+            accepted[i] = new LongHashSet(expectedUsers / sources);
+        }
+    }
+
+    /**
+     * Claims the uid and username of a user of the given source.
+     *
+     * @param source the index of the source in order of precedence.
+     * @return false if the user is a duplicate of a user of a source with higher or the same precedence.
+     */
+    boolean claim(int source, String uid, String username) {
+        long uidFingerprint = fingerprint(uid);
+        long usernameFingerprint = fingerprint(username);
+        if (claimedUids.contains(uidFingerprint) || claimedUsernames.contains(usernameFingerprint)) {
+            return false;
+        }
+        claimedUids.add(uidFingerprint);
+        claimedUsernames.add(usernameFingerprint);
+        accepted[source].add(uidFingerprint);
+        return true;
+    }
+
+    /**
+     * @return true if the user should be migrated from the given source.
+     */
+    boolean accept(int source, String uid, String username) {
+        long uidFingerprint = fingerprint(uid);
+        if (accepted[source].contains(uidFingerprint)) {
+            return true;
+        }
+        return !claimedUids.contains(uidFingerprint) && !claimedUsernames.contains(fingerprint(username));
+    }
+
+    private static long fingerprint(String key) {
+        return Fingerprints.of(key.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,137 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The LDAP {@code modifyTimestamp} from which the next incremental sync reads changes, stored as a properties file
+ * between runs. The next run asks LDAP for the entries modified at or after it.
+ * <p>
+ * A completed sync advances the mark to the time of the LDAP server when its scan started, minus a margin for clock
+ * skew between replicated servers. It is never advanced to the newest timestamp read: partitions are scanned in
+ * parallel and pages are not ordered by timestamp, so an entry modified during the scan, in a page that was already
+ * read, can have an older timestamp than an entry read later, and would never be read again. Starting the next sync
+ * from before the scan reads such entries, at the cost of updating the users modified around the scan twice.
+ */
+class SyncHighWaterMark {
+    static final String DEFAULT_FILE = "uib-migration-sync.properties";
+
+    static final Duration CLOCK_SKEW_MARGIN = Duration.ofMinutes(1);
+
+    private static final String PROPERTY = "modifyTimestamp";
+    private static final Pattern GENERALIZED_TIME = Pattern.compile("(\\d{14})(?:[.,]\\d+)?(Z|[+-]\\d{4})");
+    private static final DateTimeFormatter GENERALIZED_TIME_SECONDS = DateTimeFormatter.ofPattern("uuuuMMddHHmmss");
+
+    private final Path file;
+    private Instant mark;
+
+    private SyncHighWaterMark(Path file, Instant mark) {
+        this.file = file;
+        this.mark = mark;
+    }
+
+    /**
+     * @return the mark stored in the file, or an empty mark if the file does not exist.
+     */
+    static SyncHighWaterMark load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new SyncHighWaterMark(file, null);
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        String value = properties.getProperty(PROPERTY);
+        return new SyncHighWaterMark(file, value != null ? parseGeneralizedTime(value) : null);
+    }
+
+    void save() throws IOException {
+        Instant current = get();
+        if (current == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY, formatGeneralizedTime(current));
+        Path absolute = file.toAbsolutePath();
+        Path tmp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "UIB LDAP -> SQL migration, LDAP server time at the start of the last incremental sync minus the clock skew margin");
+        }
+        Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the mark, or null if no incremental sync has completed yet.
+     */
+    synchronized Instant get() {
+        return mark;
+    }
+
+    synchronized void set(Instant mark) {
+        this.mark = mark;
+    }
+
+    /**
+     * Advances the mark after a completed sync, to the clock skew margin before the server time read when the scan
+     * started. The mark never moves back.
+     *
+     * @param scanStart the server time at the start of the scan, or null if it is not known.
+     */
+    synchronized void advance(Instant scanStart) {
+        if (scanStart == null) {
+            return;
+        }
+        Instant next = scanStart.minus(CLOCK_SKEW_MARGIN);
+        if (mark == null || next.isAfter(mark)) {
+            mark = next;
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Parses a timestamp given on the command line, either as LDAP generalized time ({@code 20240131235959Z}) or as
+     * an ISO-8601 instant ({@code 2024-01-31T23:59:59Z}).
+     */
+    static Instant parseTimestamp(String value) {
+        if (GENERALIZED_TIME.matcher(value).matches()) {
+            return parseGeneralizedTime(value);
+        }
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a generalized time or ISO-8601 instant: " + value);
+        }
+    }
+
+    /**
+     * Parses LDAP generalized time, truncated to whole seconds.
+     */
+    static Instant parseGeneralizedTime(String value) {
+        Matcher matcher = GENERALIZED_TIME.matcher(value);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a generalized time: " + value);
+        }
+        ZoneOffset offset = "Z".equals(matcher.group(2)) ? ZoneOffset.UTC : ZoneOffset.of(matcher.group(2));
+        return LocalDateTime.parse(matcher.group(1), GENERALIZED_TIME_SECONDS).toInstant(offset);
+    }
+
+    static String formatGeneralizedTime(Instant instant) {
+        return GENERALIZED_TIME_SECONDS.format(LocalDateTime.ofInstant(instant, ZoneOffset.UTC)) + "Z";
+    }
+}
@@ -10,59 +10,67 @@ import org.constretto.ConstrettoBuilder;
 import org.constretto.ConstrettoConfiguration;
 import org.constretto.model.Resource;
 
+import javax.management.JMException;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 public class UIBMigration {
 
-    static String usage() {
-        return "Usage: java -jar uib-ldap-to-sql-migration.jar [--dry-run] [--print-passwords] [-u <usernameOrUid>] [-n <maxUsersToMigrate>]";
-    }
+    private static final long WRITE_LINGER_MILLIS = 50;
+    private static final long AUTO_TUNE_INTERVAL_SECONDS = 5;
+    private static final long THROTTLE_INTERVAL_SECONDS = 2;
+    private static final long RETRY_INITIAL_BACKOFF_MILLIS = 100;
+    private static final long RETRY_MAX_BACKOFF_MILLIS = 5000;
+    private static final int ERROR_RATE_WINDOW = 1000;
+    private static final int ERROR_RATE_MINIMUM_USERS = 100;
 
     public static void main(String[] args) {
         try {
-            boolean dryRun = false;
-            int maxUsersToMigrate = Integer.MAX_VALUE;
-            boolean printPasswords = false;
-            String specificUser = null;
-            for (int i = 0; i < args.length; i++) {
-                if ("-h".equalsIgnoreCase(args[i]) || "--help".equalsIgnoreCase(args[i])) {
-                    System.out.printf("%s%n", usage());
-                    return;
-                }
-                if ("--dry-run".equalsIgnoreCase(args[i])) {
-                    dryRun = true;
-                }
-                if ("-n".equalsIgnoreCase(args[i])) {
-                    if ((i + 1) < args.length) {
-                        maxUsersToMigrate = Integer.parseInt(args[i + 1]);
-                        i++;
-                    } else {
-                        System.out.printf("%s%n", usage());
-                        return;
-                    }
-                }
-                if ("--print-passwords".equalsIgnoreCase(args[i])) {
-                    printPasswords = true;
-                }
-                if ("-u".equalsIgnoreCase(args[i])) {
-                    if ((i + 1) < args.length) {
-                        specificUser = args[i + 1];
-                        i++;
-                    } else {
-                        System.out.printf("%s%n", usage());
-                        return;
-                    }
-                }
+            MigrationOptions options;
+            try {
+                options = MigrationOptions.parse(args);
+            } catch (IllegalArgumentException e) {
+                System.out.printf("%s%n", MigrationOptions.usage());
+                return;
+            }
+            if (options.help) {
+                System.out.printf("%s%n", MigrationOptions.usage());
+                return;
+            }
+            if (options.mergeMetricsFiles != null) {
+                mergeMetrics(options);
+                return;
             }
 
-            System.out.printf("UIB LDAP -> SQL migration started with options: dry-run=%s, maxUsers=%d, print-passwords=%s, specificUser=%s%n", dryRun, maxUsersToMigrate, printPasswords, specificUser);
+            System.out.printf("UIB LDAP -> SQL migration started with options: %s%n", options);
 
             final ConstrettoConfiguration config = new ConstrettoBuilder()
                     .createPropertiesStore()
@@ -71,29 +79,45 @@ public class UIBMigration {
                     .done()
                     .getConfiguration();
 
-            String primaryLdapUrl = config.evaluateToString("ldap.primary.url");
-            String primaryAdmPrincipal = config.evaluateToString("ldap.primary.admin.principal");
-            String primaryAdmCredentials = config.evaluateToString("ldap.primary.admin.credentials");
-            String primaryUidAttribute = config.evaluateToString("ldap.primary.uid.attribute");
-            String primaryUsernameAttribute = config.evaluateToString("ldap.primary.username.attribute");
-
-            MigrationLdapUserIdentityDao ldapUserIdentityDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, new Mapper());
+            List<LdapSource> sources = LdapSource.inPrecedenceOrder(ldapSources(config, options), options.sourcePrecedence);
+            boolean fullScan = !options.verify && options.exportSnapshotFile == null && options.importSnapshotFile == null
+                    && options.specificUser == null && options.userListFile == null && !options.incremental;
+            if (sources.size() > 1 && !fullScan) {
+                System.out.printf("Only a full migration merges LDAP sources, reading from source %s only%n", sources.get(0).getName());
+            }
 
+            BasicDataSource dataSource = null;
             RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao = null;
-            if (!dryRun) {
-                BasicDataSource dataSource = initBasicDataSource(config);
+            if (options.verify || (!options.dryRun && options.exportSnapshotFile == null)) {
+                dataSource = initBasicDataSource(config, options.dbPoolSize);
                 rdbmsLdapUserIdentityDao = new RDBMSLdapUserIdentityDao(dataSource);
             }
 
             BCryptService bCryptService = new BCryptService(config.evaluateToString("userdb.password.pepper"), config.evaluateToInt("userdb.password.bcrypt.preferredcost"));
 
-            UIBMigration uibMigration = new UIBMigration(ldapUserIdentityDao, rdbmsLdapUserIdentityDao, bCryptService, dryRun, maxUsersToMigrate, printPasswords);
+            UIBMigration uibMigration = new UIBMigration(sources, rdbmsLdapUserIdentityDao, dataSource, bCryptService, options);
 
             // run LDAP -> SQL migration
-            if (specificUser != null) {
-                uibMigration.migrateUser(specificUser);
-            } else {
-                uibMigration.migrate();
+            try {
+                if (options.verify) {
+                    uibMigration.verify();
+                } else if (options.exportSnapshotFile != null) {
+                    uibMigration.exportSnapshot(Paths.get(options.exportSnapshotFile));
+                } else if (options.importSnapshotFile != null) {
+                    uibMigration.migrateSnapshot(Paths.get(options.importSnapshotFile));
+                } else if (options.specificUser != null) {
+                    uibMigration.migrateUser(options.specificUser);
+                } else if (options.userListFile != null) {
+                    uibMigration.migrateUsers(Paths.get(options.userListFile));
+                } else if (options.incremental) {
+                    uibMigration.migrateChanges();
+                } else {
+                    uibMigration.migrate();
+                }
+            } finally {
+                for (LdapSource source : sources) {
+                    source.getDao().close();
+                }
             }
         } catch (Throwable t) {
             System.err.printf("Unexpected error, exiting....%n");
@@ -101,7 +125,68 @@ public class UIBMigration {
         }
     }
 
+    /**
+     * Creates a dao for each LDAP source listed in {@code ldap.sources}, by default only {@code primary}. Source
+     * {@code <name>} is configured like the primary source with {@code ldap.<name>.url},
+     * {@code ldap.<name>.admin.principal}, {@code ldap.<name>.admin.credentials}, {@code ldap.<name>.uid.attribute}
+     * and {@code ldap.<name>.username.attribute}, and can have its own {@code ldap.<name>.mapping.rules} file and
+     * {@code ldap.<name>.search.filter} instead of those of the options.
+     */
+    static List<LdapSource> ldapSources(ConstrettoConfiguration config, MigrationOptions options) throws IOException {
+        String sourceNames = config.hasValue("ldap.sources") ? config.evaluateToString("ldap.sources") : LdapSource.PRIMARY;
+        LdapDataMapper defaultMapper = options.mappingRulesFile != null ? RuleBasedLdapDataMapper.load(Paths.get(options.mappingRulesFile)) : new Mapper();
+        List<LdapSource> sources = new ArrayList<>();
+        for (String sourceName : sourceNames.split(",")) {
+            String name = sourceName.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "ldap." + name + ".";
+            LdapDataMapper mapper = config.hasValue(prefix + "mapping.rules")
+                    ? RuleBasedLdapDataMapper.load(Paths.get(config.evaluateToString(prefix + "mapping.rules")))
+                    : defaultMapper;
+            String searchFilter = config.hasValue(prefix + "search.filter") ? config.evaluateToString(prefix + "search.filter") : options.searchFilter;
+            MigrationLdapUserIdentityDao dao = new MigrationLdapUserIdentityDao(
+                    config.evaluateToString(prefix + "url"),
+                    config.evaluateToString(prefix + "admin.principal"),
+                    config.evaluateToString(prefix + "admin.credentials"),
+                    config.evaluateToString(prefix + "uid.attribute"),
+                    config.evaluateToString(prefix + "username.attribute"),
+                    mapper, options.pageSize, searchFilter, options.ldapPoolSize);
+            sources.add(new LdapSource(name, dao));
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("No LDAP source in ldap.sources");
+        }
+        return sources;
+    }
+
+    /**
+     * Merges the metric summaries of the shards of a migration into the metrics file, or prints the merged summary
+     * if no metrics file is given.
+     */
+    static void mergeMetrics(MigrationOptions options) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String file : options.mergeMetricsFiles.split(",")) {
+            files.add(Paths.get(file.trim()));
+        }
+        if (options.metricsFile != null) {
+            MetricsSummaryMerger.merge(files, Paths.get(options.metricsFile));
+            System.out.printf("Merged %d metric summaries into %s%n", files.size(), options.metricsFile);
+            return;
+        }
+        List<String> summaries = new ArrayList<>();
+        for (Path file : files) {
+            summaries.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+        System.out.printf("%s", MetricsSummaryMerger.merge(summaries));
+    }
+
     static BasicDataSource initBasicDataSource(ConstrettoConfiguration configuration) {
+        return initBasicDataSource(configuration, MigrationOptions.DEFAULT_DB_POOL_SIZE);
+    }
+
+    static BasicDataSource initBasicDataSource(ConstrettoConfiguration configuration, int poolSize) {
         String jdbcdriver = configuration.evaluateToString("roledb.jdbc.driver");
         String jdbcurl = configuration.evaluateToString("roledb.jdbc.url");
         String roledbuser = configuration.evaluateToString("roledb.jdbc.user");
@@ -112,73 +197,896 @@ public class UIBMigration {
         dataSource.setUrl(jdbcurl);
         dataSource.setUsername(roledbuser);
         dataSource.setPassword(roledbpasswd);
+        dataSource.setMaxActive(poolSize);
+        dataSource.setMaxIdle(poolSize);
         return dataSource;
     }
 
+    private final List<LdapSource> sources;
     private final MigrationLdapUserIdentityDao ldapUserIdentityDao;
+    private SourceDeduplicator deduplicator;
     private final RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao;
+    private final DataSource dataSource;
     private final UserIdentityConverter converter;
+    UserIdentityIndex existingUsers;
+    private JdbcUserIdentityWriter writer;
+    private PipelineStage<MigrationItem> mapStage;
+    private PipelineStage<MigrationItem> hashStage;
+    private PipelineStage<MigrationItem> writeStage;
+    private ScheduledExecutorService autoTuner;
+    private MigrationCheckpoint checkpoint;
+    private final List<PartitionProgress> partitionProgress = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService checkpointer;
+    private ScheduledExecutorService metricsSampler;
+    private AuditLog auditLog;
+    final MigrationMetrics metrics;
+    final RateLimiter ldapRateLimiter;
+    final RateLimiter writeRateLimiter;
+    private final RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private DeadLetterFile deadLetters;
 
+    final MigrationOptions options;
     final boolean dryRun;
     final int maxUsersToMigrate;
     final boolean printPasswords;
-    final int N_THREADS = 8;
-    final CountDownLatch finishedWorkers = new CountDownLatch(N_THREADS);
 
-    final BlockingQueue<LDAPUserIdentity> queue = new ArrayBlockingQueue<>(40);
-    final LDAPUserIdentity ENDSIGNAL = new LDAPUserIdentity("__END_LDAP_USER_IDENTITY__", "END", "END", "END", "end@end.com", "s3cr3t", "12345678", "END");
     final AtomicInteger migrationCount = new AtomicInteger();
     final AtomicInteger skippedCount = new AtomicInteger();
+    final AtomicInteger extractedCount = new AtomicInteger();
+    final AtomicInteger writtenCount = new AtomicInteger();
+    final AtomicInteger updatedCount = new AtomicInteger();
+    final AtomicInteger failedCount = new AtomicInteger();
+    final AtomicInteger preHashedCount = new AtomicInteger();
+    final AtomicInteger unchangedCount = new AtomicInteger();
+    final AtomicInteger duplicateCount = new AtomicInteger();
     final AtomicBoolean stop = new AtomicBoolean();
 
 
     public UIBMigration(MigrationLdapUserIdentityDao ldapUserIdentityDao, RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao, BCryptService bCryptService, boolean dryRun, int maxUsersToMigrate, boolean printPasswords) {
-        this.ldapUserIdentityDao = ldapUserIdentityDao;
+        this(ldapUserIdentityDao, rdbmsLdapUserIdentityDao, null, bCryptService, options(dryRun, maxUsersToMigrate, printPasswords));
+    }
+
+    /**
+     * @param dataSource the data source of the rdbms dao, used to preload an index of existing users. If null, the
+     *                   workers look up every user in SQL before inserting it.
+     */
+    public UIBMigration(MigrationLdapUserIdentityDao ldapUserIdentityDao, RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao, DataSource dataSource, BCryptService bCryptService, MigrationOptions options) {
+        this(Collections.singletonList(new LdapSource(LdapSource.PRIMARY, ldapUserIdentityDao)), rdbmsLdapUserIdentityDao, dataSource, bCryptService, options);
+    }
+
+    /**
+     * @param sources the directories to migrate from, highest precedence first. {@link #migrate()} reads them all
+     *                concurrently and leaves out the users of a source that are also found in a source before it.
+     *                The other modes only use the first source.
+     */
+    public UIBMigration(List<LdapSource> sources, RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao, DataSource dataSource, BCryptService bCryptService, MigrationOptions options) {
+        this.sources = sources;
+        this.ldapUserIdentityDao = sources.get(0).getDao();
         this.rdbmsLdapUserIdentityDao = rdbmsLdapUserIdentityDao;
+        this.dataSource = dataSource;
         this.converter = new UserIdentityConverter(bCryptService);
-        this.dryRun = dryRun;
-        this.maxUsersToMigrate = maxUsersToMigrate;
-        this.printPasswords = printPasswords;
+        this.options = options;
+        this.dryRun = options.dryRun;
+        this.maxUsersToMigrate = options.maxUsersToMigrate;
+        this.printPasswords = options.printPasswords;
+        this.metrics = new MigrationMetrics(this::completedCount, options.metricsIntervalSeconds);
+        this.metrics.setExpectedUsers(Math.min(options.expectedUsers, maxUsersToMigrate));
+        this.ldapRateLimiter = new RateLimiter("ldap", options.ldapRate);
+        this.writeRateLimiter = new RateLimiter("sql.write", options.writeRate);
+        this.retryPolicy = new RetryPolicy(options.retries, RETRY_INITIAL_BACKOFF_MILLIS, RETRY_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @return the number of users that have been through the whole pipeline.
+     */
+    long completedCount() {
+        if (dryRun) {
+            return migrationCount.get();
+        }
+        return (long) skippedCount.get() + writtenCount.get() + updatedCount.get() + failedCount.get();
     }
 
+    private static MigrationOptions options(boolean dryRun, int maxUsersToMigrate, boolean printPasswords) {
+        MigrationOptions options = new MigrationOptions();
+        options.dryRun = dryRun;
+        options.maxUsersToMigrate = maxUsersToMigrate;
+        options.printPasswords = printPasswords;
+        return options;
+    }
+
+    /**
+     * Migrates all users found by the LDAP scan. With a checkpoint file, the partitions that have been fully
+     * migrated are recorded in it as the migration goes, and with {@code options.resume} the partitions recorded by
+     * an earlier run are not scanned again. A resumed run must use the same partitioning as the run it resumes.
+     * <p>
+     * With several sources, the partitions of all sources are read concurrently, after a first pass over the uids and
+     * usernames of every source has decided which source each user is migrated from.
+     */
     public void migrate() {
         try {
-            for (int i = 0; i < N_THREADS; i++) {
-                new Thread(new MigrationWorker(), "migrate-" + i).start();
-            }
-            System.out.printf("MIGRATION LDAP -> SQL%n");
-            Iterator<LDAPUserIdentity> ldapUserIdentitiesIterator = ldapUserIdentityDao.allUsersWithPassword().iterator();
-            int count = 0;
-            while (ldapUserIdentitiesIterator.hasNext()) {
-                LDAPUserIdentity ldapUserIdentity;
+            List<LdapScanPartition> partitions = new ArrayList<>();
+            for (LdapSource source : sources) {
+                for (LdapScanPartition partition : LdapScanPartition.partitions(options.partitionBases, source.getDao().getUidAttribute(), options.partitionPrefixes)) {
+                    partitions.add(sources.size() > 1 ? partition.inSource(source.getName()) : partition);
+                }
+            }
+            if (options.checkpointFile != null) {
+                partitions = loadCheckpoint(partitions);
+            }
+            if (sources.size() > 1) {
+                deduplicator = claimSourceKeys();
+                System.out.printf("MIGRATION LDAP -> SQL from %d partition(s) of %d sources %s%n", partitions.size(), sources.size(), LdapSource.names(sources));
+            } else {
+                System.out.printf("MIGRATION LDAP -> SQL from %d partition(s)%n", partitions.size());
+            }
+            migratePartitions(partitions, null);
+        } catch (IOException | InterruptedException | NamingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deduplicator = null;
+        }
+    }
+
+    /**
+     * Reads the uid and username of every user of every source, in order of precedence, to decide which source each
+     * user is migrated from.
+     */
+    private SourceDeduplicator claimSourceKeys() throws NamingException {
+        SourceDeduplicator sourceDeduplicator = new SourceDeduplicator(sources.size(), (int) Math.min(options.expectedUsers, Integer.MAX_VALUE / 4));
+        for (int i = 0; i < sources.size(); i++) {
+            long start = System.currentTimeMillis();
+            long users = 0;
+            long duplicates = 0;
+            for (String[] uidAndUsername : sources.get(i).getDao().allUserKeys(LdapScanPartition.ALL)) {
+                users++;
+                if (!sourceDeduplicator.claim(i, uidAndUsername[0], uidAndUsername[1])) {
+                    duplicates++;
+                }
+            }
+            System.out.printf("Source %s: %d users, %d of them duplicates of users in sources before it, read in %d ms%n",
+                    sources.get(i).getName(), users, duplicates, System.currentTimeMillis() - start);
+        }
+        return sourceDeduplicator;
+    }
+
+    /**
+     * Migrates the users modified in LDAP since the high-water mark of the last incremental sync, or since
+     * {@code options.since}. Users that already exist in SQL are updated instead of skipped. When the sync has
+     * completed without errors, the mark is advanced to the LDAP server time read before the scan, less a margin for
+     * clock skew, and saved. With
+     * {@code options.pollIntervalSeconds} the sync is repeated at that interval until the migration is stopped.
+     */
+    public void migrateChanges() {
+        try {
+            SyncHighWaterMark highWaterMark = SyncHighWaterMark.load(Paths.get(options.syncStateFile));
+            if (options.since != null) {
+                highWaterMark.set(SyncHighWaterMark.parseTimestamp(options.since));
+            }
+            if (highWaterMark.get() == null) {
+                System.out.printf("No high-water mark found in %s, use --since <modifyTimestamp> for the first incremental sync%n", highWaterMark.getFile());
+                return;
+            }
+            List<LdapScanPartition> partitions = LdapScanPartition.partitions(options.partitionBases, ldapUserIdentityDao.getUidAttribute(), options.partitionPrefixes);
+            while (true) {
+                Instant since = highWaterMark.get();
+                Instant scanStart = ldapUserIdentityDao.serverTime(since);
+                System.out.printf("INCREMENTAL MIGRATION LDAP -> SQL of users modified since %s%n", SyncHighWaterMark.formatGeneralizedTime(since));
+                resetCounters();
+                if (migratePartitions(partitions, since) && !stop.get()) {
+                    highWaterMark.advance(scanStart);
+                    highWaterMark.save();
+                    System.out.printf("High-water mark %s written to %s%n", SyncHighWaterMark.formatGeneralizedTime(highWaterMark.get()), highWaterMark.getFile());
+                } else {
+                    highWaterMark.set(since);
+                    System.out.printf("Incremental sync did not complete, high-water mark left at %s%n", SyncHighWaterMark.formatGeneralizedTime(since));
+                }
+                if (options.pollIntervalSeconds <= 0 || stop.get()) {
+                    return;
+                }
+                TimeUnit.SECONDS.sleep(options.pollIntervalSeconds);
+            }
+        } catch (IOException | InterruptedException | NamingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs the pipeline over the given partitions, all users or only those modified since the given time.
+     *
+     * @return true if every partition was read to the end and all its users were migrated.
+     */
+    private boolean migratePartitions(List<LdapScanPartition> partitions, Instant modifiedSince) throws InterruptedException {
+        partitionProgress.clear();
+        ExecutorService producers = startPipeline(Math.min(options.producerThreads, partitions.size()), "extract-");
+        try {
+            for (LdapScanPartition partition : partitions) {
+                PartitionProgress progress = new PartitionProgress(partition);
+                partitionProgress.add(progress);
+                producers.execute(new PartitionProducer(progress, modifiedSince));
+            }
+        } finally {
+            finishPipeline(producers);
+        }
+        boolean complete = true;
+        for (PartitionProgress progress : partitionProgress) {
+            complete &= progress.isComplete();
+            if (partitions.size() > 1) {
+                System.out.printf("Partition %s: %d users read from LDAP%s%n", progress.getName(), progress.getExtractedCount(), progress.isComplete() ? "" : ", incomplete");
+            }
+        }
+        return complete;
+    }
+
+    private void resetCounters() {
+        migrationCount.set(0);
+        skippedCount.set(0);
+        extractedCount.set(0);
+        writtenCount.set(0);
+        updatedCount.set(0);
+        failedCount.set(0);
+        preHashedCount.set(0);
+        unchangedCount.set(0);
+        duplicateCount.set(0);
+    }
+
+    /**
+     * @return the partitions that still need to be migrated.
+     */
+    private List<LdapScanPartition> loadCheckpoint(List<LdapScanPartition> partitions) throws IOException {
+        Path file = Paths.get(options.checkpointFile);
+        if (!options.resume) {
+            checkpoint = new MigrationCheckpoint(file);
+            return partitions;
+        }
+        checkpoint = MigrationCheckpoint.load(file);
+        List<LdapScanPartition> remaining = new ArrayList<>();
+        for (LdapScanPartition partition : partitions) {
+            if (!checkpoint.isComplete(partition.getName())) {
+                remaining.add(partition);
+            }
+        }
+        System.out.printf("Resuming from checkpoint %s: %d of %d partition(s) already migrated, %d users written and %d failed so far%n",
+                file, partitions.size() - remaining.size(), partitions.size(), checkpoint.written, checkpoint.failed);
+        return remaining;
+    }
+
+    /**
+     * Records the partitions that have been completed since the last checkpoint, together with their counters.
+     */
+    private void saveCheckpoint() {
+        try {
+            for (PartitionProgress progress : partitionProgress) {
+                if (progress.isComplete()) {
+                    checkpoint.complete(progress.getName(), progress.getDoneCount(), progress.getSkippedCount(), progress.getWrittenCount(), progress.getFailedCount());
+                }
+            }
+            checkpoint.save();
+        } catch (IOException e) {
+            System.out.printf("Unable to write checkpoint %s: %s%n", checkpoint.getFile(), e.getMessage());
+        }
+    }
+
+    /**
+     * Migrates the users listed in a file, one username or uid per line. Blank lines and lines starting with # are
+     * ignored. The users are looked up in batches of {@code options.lookupBatchSize} values per LDAP search, and the
+     * results are migrated by the same pipeline as {@link #migrate()}.
+     */
+    public void migrateUsers(Path file) {
+        try {
+            System.out.printf("MIGRATION LDAP -> SQL of users listed in: %s%n", file);
+            if (options.expectedUsers <= 0) {
+                try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                    metrics.setExpectedUsers(Math.min(lines.map(String::trim).filter(line -> !line.isEmpty() && !line.startsWith("#")).count(), maxUsersToMigrate));
+                }
+            }
+            Set<String> queuedUids = ConcurrentHashMap.newKeySet();
+            AtomicInteger requestedCount = new AtomicInteger();
+            AtomicInteger notFoundCount = new AtomicInteger();
+            ExecutorService lookups = startPipeline(options.producerThreads, "lookup-");
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                List<String> batch = new ArrayList<>(options.lookupBatchSize);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String usernameOrUid = line.trim();
+                    if (usernameOrUid.isEmpty() || usernameOrUid.startsWith("#")) {
+                        continue;
+                    }
+                    requestedCount.incrementAndGet();
+                    batch.add(usernameOrUid);
+                    if (batch.size() >= options.lookupBatchSize) {
+                        lookups.execute(new BatchLookupProducer(batch, queuedUids, notFoundCount));
+                        batch = new ArrayList<>(options.lookupBatchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    lookups.execute(new BatchLookupProducer(batch, queuedUids, notFoundCount));
+                }
+            } finally {
+                finishPipeline(lookups);
+            }
+            System.out.printf("Users listed: %d, not found in LDAP: %d%n", requestedCount.get(), notFoundCount.get());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares the users in LDAP with the rows in SQL without writing anything, see {@link MigrationVerifier}.
+     *
+     * @return true if both sides hold the same users with the same content.
+     */
+    public boolean verify() {
+        try {
+            return new MigrationVerifier(ldapUserIdentityDao, dataSource, options.partitionBases, options.partitionPrefixes, options.producerThreads).verify();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads all users from LDAP into a snapshot file instead of migrating them, see {@link UserSnapshotWriter}. The
+     * partitions are read concurrently by {@code options.producerThreads} threads. The snapshot is only marked as
+     * complete if every partition was read to the end.
+     */
+    public void exportSnapshot(Path file) {
+        List<LdapScanPartition> partitions = LdapScanPartition.partitions(options.partitionBases, ldapUserIdentityDao.getUidAttribute(), options.partitionPrefixes);
+        System.out.printf("EXPORT LDAP -> snapshot %s from %d partition(s)%n", file, partitions.size());
+        long start = System.currentTimeMillis();
+        ExecutorService extractors = Executors.newFixedThreadPool(Math.max(1, Math.min(options.producerThreads, partitions.size())));
+        try (UserSnapshotWriter snapshot = new UserSnapshotWriter(file)) {
+            List<Future<?>> extractions = new ArrayList<>();
+            for (LdapScanPartition partition : partitions) {
+                extractions.add(extractors.submit(() -> {
+                    for (LDAPUserIdentity ldapUserIdentity : ldapUserIdentityDao.allUsersWithPassword(partition)) {
+                        if (!inShard(ldapUserIdentity)) {
+                            continue;
+                        }
+                        if (extractedCount.incrementAndGet() > maxUsersToMigrate) {
+                            break;
+                        }
+                        snapshot.write(ldapUserIdentity);
+                        ldapRateLimiter.acquire(1);
+                    }
+                    return null;
+                }));
+            }
+            boolean complete = true;
+            for (int i = 0; i < extractions.size(); i++) {
+                try {
+                    extractions.get(i).get();
+                } catch (ExecutionException e) {
+                    complete = false;
+                    System.out.printf("Error while reading partition %s from LDAP%n", partitions.get(i));
+                    e.getCause().printStackTrace();
+                }
+            }
+            if (complete) {
+                snapshot.finish();
+            }
+            System.out.printf("Exported %d users in %d ms%s%n", snapshot.getCount(), System.currentTimeMillis() - start, complete ? "" : ", snapshot is incomplete");
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            extractors.shutdownNow();
+        }
+    }
+
+    /**
+     * Migrates the users of a snapshot file written by {@link #exportSnapshot(Path)}, through the same pipeline as a
+     * migration from LDAP.
+     */
+    public void migrateSnapshot(Path file) {
+        try {
+            System.out.printf("MIGRATION snapshot %s -> SQL%n", file);
+            ExecutorService reader = startPipeline(1, "import-");
+            try {
+                reader.execute(new SnapshotProducer(file));
+            } finally {
+                finishPipeline(reader);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Starts the stages that follow extraction: map decides whether a user should be migrated, hash converts it to
+     * a SQL identity including the BCrypt password hash, and write stores it. Each stage has its own bounded queue
+     * and thread count, hashing is sized to the available cores and writing to the database connections. With
+     * virtual threads, the I/O-bound map and write stages run each task on a virtual thread, bounded by the
+     * database pool size.
+     *
+     * @return the executor for the extract stage, which puts the users read from LDAP on the map stage.
+     */
+    private ExecutorService startPipeline(int producerThreads, String producerThreadPrefix) {
+        if (!dryRun && dataSource != null && existingUsers == null) {
+            long start = System.currentTimeMillis();
+            try {
+                // users read by an incremental sync are updated whatever their content, see isUnchanged
+                existingUsers = UserIdentityIndex.load(dataSource, options.upsert && !options.incremental, options.shard);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            System.out.printf("Loaded %d existing users from SQL in %d ms%n", existingUsers.size(), System.currentTimeMillis() - start);
+            writer = new JdbcUserIdentityWriter(dataSource, retryPolicy);
+        }
+        circuitBreaker = new CircuitBreaker(options.maxErrorRate, ERROR_RATE_WINDOW, ERROR_RATE_MINIMUM_USERS);
+        deadLetters = DeadLetterFile.inDirectory(Paths.get(options.deadLetterDirectory));
+        if (options.auditFile != null) {
+            try {
+                auditLog = AuditLog.toFile(Paths.get(options.auditFile), printPasswords);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else if (printPasswords) {
+            auditLog = AuditLog.toConsole(true);
+        }
+        boolean virtualThreads = options.virtualThreads && VirtualThreads.isAvailable();
+        if (options.virtualThreads && !virtualThreads) {
+            System.out.printf("Virtual threads require JDK 21 or newer, running on %s. Using platform threads.%n", System.getProperty("java.version"));
+        }
+        List<PipelineStage<?>> tunableStages = new ArrayList<>();
+        if (!dryRun) {
+            int batchSize = writer != null ? options.batchSize : 1;
+            int writerThreads = virtualThreads ? options.dbPoolSize : options.writerThreads;
+            int maxWriterThreads = options.autoTune ? Math.max(writerThreads, options.dbPoolSize) : writerThreads;
+            writeStage = new PipelineStage<>("write", writerThreads, maxWriterThreads, Math.max(options.queueSize, maxWriterThreads * batchSize * 2), batchSize, WRITE_LINGER_MILLIS, stop, this::write);
+            hashStage = new PipelineStage<>("hash", options.hashThreads, Math.max(options.queueSize, options.hashThreads), stop, this::hash);
+            if (virtualThreads) {
+                writeStage.withVirtualThreads();
+            }
+            writeStage.start();
+            hashStage.start();
+            tunableStages.add(writeStage);
+        }
+        int mapThreads = virtualThreads ? options.dbPoolSize : options.mapThreads;
+        int maxMapThreads = options.autoTune ? mapThreads * 4 : mapThreads;
+        mapStage = new PipelineStage<>("map", mapThreads, maxMapThreads, options.queueSize, 1, 0, stop, this::map);
+        if (virtualThreads) {
+            mapStage.withVirtualThreads();
+        }
+        mapStage.start();
+        tunableStages.add(mapStage);
+        metrics.start(hashStage != null ? Arrays.<PipelineStage<?>>asList(mapStage, hashStage, writeStage) : Collections.<PipelineStage<?>>singletonList(mapStage));
+        if (options.jmx) {
+            try {
+                metrics.registerMBean();
+            } catch (JMException e) {
+                System.out.printf("Unable to register metrics MBean: %s%n", e.getMessage());
+            }
+        }
+        metricsSampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsSampler.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+        if (options.ldapLatencyTargetMillis > 0) {
+            // entries are timed one by one in scans, but the target is the latency of a page
+            double entriesPerOperation = options.userListFile != null ? 1 : options.pageSize;
+            LatencyThrottle throttle = new LatencyThrottle(ldapRateLimiter, options.ldapRate, options.ldapLatencyTargetMillis, entriesPerOperation, metrics.ldapFetch);
+            metricsSampler.scheduleAtFixedRate(throttle, THROTTLE_INTERVAL_SECONDS, THROTTLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (options.sqlLatencyTargetMillis > 0) {
+            LatencyThrottle throttle = new LatencyThrottle(writeRateLimiter, options.writeRate, options.sqlLatencyTargetMillis, 1, metrics.sqlInsert, metrics.sqlUpdate);
+            metricsSampler.scheduleAtFixedRate(throttle, THROTTLE_INTERVAL_SECONDS, THROTTLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (options.autoTune) {
+            ConcurrencyController controller = new ConcurrencyController(tunableStages, () -> dryRun ? mapStage.getProcessedCount() : skippedCount.get() + writeStage.getProcessedCount());
+            autoTuner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "auto-tune");
+                thread.setDaemon(true);
+                return thread;
+            });
+            autoTuner.scheduleAtFixedRate(controller, AUTO_TUNE_INTERVAL_SECONDS, AUTO_TUNE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (checkpoint != null) {
+            checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointer.scheduleWithFixedDelay(this::saveCheckpoint, Math.max(1, options.checkpointIntervalSeconds), Math.max(1, options.checkpointIntervalSeconds), TimeUnit.SECONDS);
+        }
+        AtomicInteger producerThreadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, producerThreads), r -> new Thread(r, producerThreadPrefix + producerThreadCount.getAndIncrement()));
+    }
+
+    private void finishPipeline(ExecutorService producers) throws InterruptedException {
+        producers.shutdown();
+        producers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        mapStage.finish();
+        if (autoTuner != null) {
+            autoTuner.shutdownNow();
+        }
+        if (hashStage != null) {
+            hashStage.finish();
+            writeStage.finish();
+        }
+        metricsSampler.shutdownNow();
+        if (auditLog != null) {
+            try {
+                auditLog.close();
+            } catch (IOException e) {
+                System.out.printf("Audit log is incomplete: %s%n", e.getMessage());
+            }
+            auditLog = null;
+        }
+        try {
+            deadLetters.close();
+        } catch (IOException e) {
+            System.out.printf("Dead-letter file %s is incomplete: %s%n", deadLetters.getFile(), e.getMessage());
+        }
+        if (deadLetters.getCount() > 0) {
+            System.out.printf("Failed users written to %s, migrate them again with --import-snapshot %s%n", deadLetters.getFile(), deadLetters.getFile());
+        }
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            saveCheckpoint();
+            System.out.printf("Checkpoint written to %s%n", checkpoint.getFile());
+        }
+        System.out.printf("Attempted to migrate %d users.%n", migrationCount.get());
+        if (skippedCount.get() > 0) {
+            System.out.printf("Skipped users: %d%n", skippedCount.get());
+        }
+        if (unchangedCount.get() > 0) {
+            System.out.printf("Unchanged users, not updated: %d%n", unchangedCount.get());
+        }
+        if (preHashedCount.get() > 0) {
+            System.out.printf("Users with already hashed passwords, migrated without a password to be reset in UIB: %d%n", preHashedCount.get());
+        }
+        if (duplicateCount.get() > 0) {
+            System.out.printf("Duplicates of users in sources with higher precedence, left out: %d%n", duplicateCount.get());
+        }
+        if (writeStage != null) {
+            System.out.printf("Written users: %d%n", writtenCount.get());
+            if (updatedCount.get() > 0) {
+                System.out.printf("Updated users: %d%n", updatedCount.get());
+            }
+            if (failedCount.get() > 0) {
+                System.out.printf("Failed users: %d%n", failedCount.get());
+            }
+        }
+        System.out.printf("Throughput: %.1f users/s%n", metrics.getUsersPerSecond());
+        for (LatencyHistogram histogram : metrics.getHistograms()) {
+            if (histogram.getCount() > 0) {
+                System.out.printf("Latency %s%n", MigrationMetrics.summary(histogram));
+            }
+        }
+        if (options.metricsFile != null) {
+            Map<String, Long> counters = new LinkedHashMap<>();
+            counters.put("migrated", (long) migrationCount.get());
+            counters.put("skipped", (long) skippedCount.get());
+            counters.put("written", (long) writtenCount.get());
+            counters.put("updated", (long) updatedCount.get());
+            counters.put("failed", (long) failedCount.get());
+            counters.put("preHashed", (long) preHashedCount.get());
+            counters.put("unchanged", (long) unchangedCount.get());
+            counters.put("duplicates", (long) duplicateCount.get());
+            try {
+                metrics.writeJson(Paths.get(options.metricsFile), counters);
+            } catch (IOException e) {
+                System.out.printf("Unable to write metrics summary %s: %s%n", options.metricsFile, e.getMessage());
+            }
+        }
+        metrics.unregisterMBean();
+    }
+
+    private void map(List<MigrationItem> items) throws InterruptedException {
+        for (MigrationItem item : items) {
+            long start = System.nanoTime();
+            LDAPUserIdentity ldapUserIdentity = item.ldapUserIdentity;
+            migrationCount.incrementAndGet();
+            if (isUnchanged(ldapUserIdentity)) {
+                skippedCount.incrementAndGet();
+                unchangedCount.incrementAndGet();
+                item.skipped();
+                metrics.map.recordSince(start);
+                circuitBreaker.record(false);
+                audit(AuditLog.Outcome.SKIPPED, item, "unchanged");
+                continue;
+            }
+            if (!dryRun) {
+                ExistingUser existingUser;
                 try {
-                    ldapUserIdentity = ldapUserIdentitiesIterator.next();
+                    existingUser = existingUser(ldapUserIdentity);
+                } catch (InterruptedException e) {
+                    throw e;
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    metrics.map.recordSince(start);
+                    fail(item, e);
                     continue;
                 }
+                if (existingUser != ExistingUser.NONE) {
+                    // only a row with the same uid can be updated, a username taken by another uid is left alone
+                    if (existingUser == ExistingUser.USERNAME || !(options.incremental || options.upsert) || writer == null) {
+                        skippedCount.incrementAndGet();
+                        item.skipped();
+                        metrics.map.recordSince(start);
+                        circuitBreaker.record(false);
+                        audit(AuditLog.Outcome.SKIPPED, item, existingUser == ExistingUser.USERNAME ? "username exists with another uid" : null);
+                        continue;
+                    }
+                    item.update = true;
+                }
+            }
+            metrics.map.recordSince(start);
+            if (dryRun) {
+                item.done();
+                audit(AuditLog.Outcome.DRY_RUN, item, null);
+            } else if (PasswordScheme.of(ldapUserIdentity.getPassword()) != null) {
+                // already hashed in LDAP, which UIB cannot verify, nothing for the hash stage to do
+                item.rdbmsUserIdentity = new PreHashedUserIdentity(ldapUserIdentity);
+                preHashedCount.incrementAndGet();
+                writeStage.put(item);
+            } else {
+                hashStage.put(item);
+            }
+        }
+    }
+
+    private void hash(List<MigrationItem> items) throws InterruptedException {
+        for (MigrationItem item : items) {
+            LDAPUserIdentity ldapUserIdentity = item.ldapUserIdentity;
+            long start = System.nanoTime();
+            try {
+                item.rdbmsUserIdentity = converter.convertFromLDAPUserIdentity(ldapUserIdentity);
+                metrics.bcrypt.recordSince(start);
+            } catch (RuntimeException e) {
+                fail(item, e);
+                continue;
+            }
+            writeStage.put(item);
+        }
+    }
+
+    private void write(List<MigrationItem> items) throws InterruptedException {
+        writeRateLimiter.acquire(items.size());
+        if (writer == null) {
+            for (MigrationItem item : items) {
+                long start = System.nanoTime();
                 try {
-                    if (count >= maxUsersToMigrate) {
-                        break;
+                    retryPolicy.call(() -> {
+                        rdbmsLdapUserIdentityDao.create(item.rdbmsUserIdentity);
+                        return null;
+                    });
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    fail(item, e);
+                    continue;
+                } finally {
+                    metrics.sqlInsert.recordSince(start);
+                }
+                writtenCount.incrementAndGet();
+                item.written();
+                circuitBreaker.record(false);
+                audit(AuditLog.Outcome.INSERTED, item, null);
+            }
+            return;
+        }
+        List<RDBMSUserIdentity> inserts = new ArrayList<>(items.size());
+        List<RDBMSUserIdentity> updates = new ArrayList<>();
+        for (MigrationItem item : items) {
+            (item.update ? updates : inserts).add(item.rdbmsUserIdentity);
+        }
+        List<JdbcUserIdentityWriter.Failure> failures = new ArrayList<>();
+        if (!inserts.isEmpty()) {
+            long start = System.nanoTime();
+            failures.addAll(writer.write(inserts));
+            metrics.sqlInsert.recordSince(start);
+        }
+        writtenCount.addAndGet(inserts.size() - failures.size());
+        if (!updates.isEmpty()) {
+            long start = System.nanoTime();
+            List<JdbcUserIdentityWriter.Failure> updateFailures = writer.update(updates);
+            metrics.sqlUpdate.recordSince(start);
+            updatedCount.addAndGet(updates.size() - updateFailures.size());
+            failures.addAll(updateFailures);
+        }
+        Map<RDBMSUserIdentity, JdbcUserIdentityWriter.Failure> failed = new IdentityHashMap<>();
+        for (JdbcUserIdentityWriter.Failure failure : failures) {
+            failed.put(failure.identity, failure);
+        }
+        // committed or permanently failed, a resumed run would not do better
+        for (MigrationItem item : items) {
+            JdbcUserIdentityWriter.Failure failure = failed.get(item.rdbmsUserIdentity);
+            if (failure != null) {
+                fail(item, failure.error);
+                continue;
+            }
+            if (item.update) {
+                item.done();
+            } else {
+                item.written();
+            }
+            circuitBreaker.record(false);
+            if (existingUsers != null && existingUsers.hasContents()) {
+                existingUsers.addContent(UserIdentityDigest.of(item.ldapUserIdentity));
+            }
+            audit(item.update ? AuditLog.Outcome.UPDATED : AuditLog.Outcome.INSERTED, item,
+                    item.rdbmsUserIdentity instanceof PreHashedUserIdentity ? "hashed password not migrated" : null);
+        }
+    }
+
+    /**
+     * Gives up on a user that failed for good: it is counted, reported and kept in the dead-letter file, and the
+     * migration goes on with the next user unless the error rate has tripped the circuit breaker.
+     */
+    private void fail(MigrationItem item, Exception error) throws InterruptedException {
+        LDAPUserIdentity ldapUserIdentity = item.ldapUserIdentity;
+        failedCount.incrementAndGet();
+        System.out.printf("Error while migrating user: uid=%s, username=%s, error=%s%n", ldapUserIdentity.getUid(), ldapUserIdentity.getUsername(), error);
+        deadLetters.write(ldapUserIdentity);
+        item.failed();
+        audit(AuditLog.Outcome.FAILED, item, String.valueOf(error.getMessage()));
+        if (circuitBreaker.record(true) && stop.compareAndSet(false, true)) {
+            System.out.printf("Error rate %.1f%% of the last users is above %.1f%%, stopping migration%n", circuitBreaker.getErrorRate() * 100, options.maxErrorRate * 100);
+        }
+    }
+
+    /**
+     * @return true if the user belongs to the shard of this process, or if the migration is not sharded.
+     */
+    private boolean inShard(LDAPUserIdentity ldapUserIdentity) {
+        return options.shard == null || options.shard.contains(ldapUserIdentity.getUid());
+    }
+
+    private void audit(AuditLog.Outcome outcome, MigrationItem item, String detail) throws InterruptedException {
+        if (auditLog != null) {
+            auditLog.record(outcome, item.ldapUserIdentity.getUid(), item.ldapUserIdentity.getUsername(), item.ldapUserIdentity.getPassword(), detail);
+        }
+    }
+
+    private int sourceIndex(LdapScanPartition partition) {
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).getName().equals(partition.getSource())) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    class PartitionProducer implements Runnable {
+        private final PartitionProgress progress;
+        private final Instant modifiedSince;
+
+        /**
+         * @param modifiedSince if not null, only the users modified since this time are read.
+         */
+        PartitionProducer(PartitionProgress progress, Instant modifiedSince) {
+            this.progress = progress;
+            this.modifiedSince = modifiedSince;
+        }
+
+        @Override
+        public void run() {
+            LdapScanPartition partition = progress.getPartition();
+            int sourceIndex = sourceIndex(partition);
+            MigrationLdapUserIdentityDao sourceDao = sources.get(sourceIndex).getDao();
+            try {
+                Iterable<LDAPUserIdentity> ldapUserIdentities = modifiedSince != null
+                        ? sourceDao.modifiedUsersWithPassword(partition, modifiedSince)
+                        : sourceDao.allUsersWithPassword(partition);
+                Iterator<LDAPUserIdentity> ldapUserIdentitiesIterator = ldapUserIdentities.iterator();
+                long fetchStart = System.nanoTime();
+                while (ldapUserIdentitiesIterator.hasNext()) {
+                    LDAPUserIdentity ldapUserIdentity;
+                    try {
+                        ldapUserIdentity = ldapUserIdentitiesIterator.next();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        continue;
                     }
-                    if (stop.get()) {
-                        break;
+                    if (!inShard(ldapUserIdentity)) {
+                        continue;
                     }
-                    queue.put(ldapUserIdentity);
-                } finally {
-                    count++;
+                    if (deduplicator != null && !deduplicator.accept(sourceIndex, ldapUserIdentity.getUid(), ldapUserIdentity.getUsername())) {
+                        duplicateCount.incrementAndGet();
+                        continue;
+                    }
+                    if (extractedCount.incrementAndGet() > maxUsersToMigrate) {
+                        return;
+                    }
+                    metrics.ldapFetch.recordSince(fetchStart);
+                    progress.extracted();
+                    if (!mapStage.put(new MigrationItem(ldapUserIdentity, progress))) {
+                        return;
+                    }
+                    ldapRateLimiter.acquire(1);
+                    fetchStart = System.nanoTime();
                 }
+                progress.extractionFinished();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                System.out.printf("Error while reading partition %s from LDAP after %d users%n", partition, progress.getExtractedCount());
+                t.printStackTrace();
             }
-            for (int i = 0; i < N_THREADS; i++) {
-                queue.put(ENDSIGNAL);
+        }
+    }
+
+    class SnapshotProducer implements Runnable {
+        private final Path file;
+
+        SnapshotProducer(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try (UserSnapshotReader snapshot = new UserSnapshotReader(file)) {
+                while (snapshot.hasNext()) {
+                    LDAPUserIdentity ldapUserIdentity = snapshot.next();
+                    if (!inShard(ldapUserIdentity)) {
+                        continue;
+                    }
+                    if (extractedCount.incrementAndGet() > maxUsersToMigrate) {
+                        return;
+                    }
+                    if (!mapStage.put(new MigrationItem(ldapUserIdentity, null))) {
+                        return;
+                    }
+                }
+                System.out.printf("Read %d users from snapshot %s%n", snapshot.getCount(), file);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                System.out.printf("Error while reading snapshot %s%n", file);
+                t.printStackTrace();
+            }
+        }
+    }
+
+    class BatchLookupProducer implements Runnable {
+        private final List<String> usernamesOrUids;
+        private final Set<String> queuedUids;
+        private final AtomicInteger notFoundCount;
+
+        BatchLookupProducer(List<String> usernamesOrUids, Set<String> queuedUids, AtomicInteger notFoundCount) {
+            this.usernamesOrUids = usernamesOrUids;
+            this.queuedUids = queuedUids;
+            this.notFoundCount = notFoundCount;
+        }
+
+        @Override
+        public void run() {
+            if (stop.get()) {
+                return;
             }
-            finishedWorkers.await(60, TimeUnit.MINUTES);
-            System.out.printf("Attempted to migrate %d users.%n", migrationCount.get());
-            if (skippedCount.get() > 0) {
-                System.out.printf("Skipped users: %d%n", skippedCount.get());
+            try {
+                ldapRateLimiter.acquire(usernamesOrUids.size());
+                long start = System.nanoTime();
+                Map<String, LDAPUserIdentity> found = ldapUserIdentityDao.getUserIdentitiesWithPassword(usernamesOrUids);
+                metrics.ldapFetch.recordSince(start);
+                for (String usernameOrUid : usernamesOrUids) {
+                    LDAPUserIdentity ldapUserIdentity = found.get(usernameOrUid);
+                    if (ldapUserIdentity == null) {
+                        notFoundCount.incrementAndGet();
+                        System.out.printf("User not found in LDAP: %s%n", usernameOrUid);
+                        continue;
+                    }
+                    if (!inShard(ldapUserIdentity)) {
+                        continue;
+                    }
+                    if (!queuedUids.add(ldapUserIdentity.getUid())) {
+                        continue; // listed more than once, by username and uid
+                    }
+                    if (extractedCount.incrementAndGet() > maxUsersToMigrate) {
+                        return;
+                    }
+                    if (!mapStage.put(new MigrationItem(ldapUserIdentity, null))) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                System.out.printf("Error while looking up users in LDAP: %s%n", usernamesOrUids);
+                t.printStackTrace();
             }
-        } catch (NamingException | InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -186,13 +1094,19 @@ public class UIBMigration {
         try {
             System.out.printf("MIGRATION LDAP -> SQL of user: %s%n", user);
             LDAPUserIdentity ldapUserIdentity = ldapUserIdentityDao.getUserIndentityWithPassword(user);
+            if (ldapUserIdentity == null) {
+                System.out.printf("User not found in LDAP: %s%n", user);
+                return;
+            }
             if (printPasswords) {
                 System.out.printf("USER: %s ==::== PASS: '%s'%n", ldapUserIdentity, ldapUserIdentity.getPassword());
             } else {
                 System.out.printf("USER: %s%n", ldapUserIdentity);
             }
             if (!dryRun) {
-                RDBMSUserIdentity rdbmsUserIdentity = converter.convertFromLDAPUserIdentity(ldapUserIdentity);
+                RDBMSUserIdentity rdbmsUserIdentity = PasswordScheme.of(ldapUserIdentity.getPassword()) != null
+                        ? new PreHashedUserIdentity(ldapUserIdentity)
+                        : converter.convertFromLDAPUserIdentity(ldapUserIdentity);
                 rdbmsLdapUserIdentityDao.create(rdbmsUserIdentity);
             }
         } catch (NamingException e) {
@@ -200,65 +1114,48 @@ public class UIBMigration {
         }
     }
 
-    class MigrationWorker implements Runnable {
+    /**
+     * An upsert of a user whose row is up to date is found before spending a BCrypt run on it. The digest cannot tell
+     * a changed plaintext password from the old one, so the users read by an incremental sync, which were modified in
+     * LDAP, are never taken as unchanged.
+     */
+    boolean isUnchanged(LDAPUserIdentity ldapUserIdentity) {
+        return !dryRun && !options.incremental && existingUsers != null && existingUsers.containsContent(UserIdentityDigest.of(ldapUserIdentity));
+    }
 
-        @Override
-        public void run() {
-            try {
-                for (; !stop.get(); ) {
-                    final int i = migrationCount.incrementAndGet();
-                    LDAPUserIdentity ldapUserIdentity;
-                    try {
-                        ldapUserIdentity = queue.take();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        return;
-                    }
-                    try {
-                        if (ENDSIGNAL == ldapUserIdentity) {
-                            System.out.printf("MigrationWorker reached ENDSIGNAL. Thread: %s%n", Thread.currentThread().getName());
-                            return;
-                        }
-                        if (!dryRun) {
-                            String uid = ldapUserIdentity.getUid();
-                            RDBMSUserIdentity existingIdentity = rdbmsLdapUserIdentityDao.get(uid);
-                            if (existingIdentity == null) {
-                                existingIdentity = rdbmsLdapUserIdentityDao.getWithUsername(ldapUserIdentity.getUsername());
-                            }
-                            if (existingIdentity != null) {
-                                skippedCount.incrementAndGet();
-                                // System.out.printf("#%d Skipping USER: %s%n", i, ldapUserIdentity);
-                                continue;
-                            }
-                        }
-                        if (printPasswords) {
-                            System.out.printf("#%d USER: %s ==::== PASS: '%s'%n", i, ldapUserIdentity, ldapUserIdentity.getPassword());
-                        } else {
-                            System.out.printf("#%d USER: %s%n", i, ldapUserIdentity);
-                        }
-                        if (!dryRun) {
-                            RDBMSUserIdentity rdbmsUserIdentity = converter.convertFromLDAPUserIdentity(ldapUserIdentity);
-                            rdbmsLdapUserIdentityDao.create(rdbmsUserIdentity);
-                        }
-                    } catch (Throwable t) {
-                        System.out.printf("Error while converting user: uid=%s, username=%s%n", ldapUserIdentity.getUid(), ldapUserIdentity.getUsername());
-                        t.printStackTrace();
-                        stop.set(true);
-                    }
+    enum ExistingUser {
+        /** Neither the uid nor the username exists, the user is inserted. */
+        NONE,
+        /** A row with the uid exists. */
+        UID,
+        /** Only the username exists, on a row with another uid. */
+        USERNAME
+    }
+
+    ExistingUser existingUser(LDAPUserIdentity ldapUserIdentity) throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (existingUsers != null) {
+                if (existingUsers.claim(ldapUserIdentity.getUid(), ldapUserIdentity.getUsername())) {
+                    return ExistingUser.NONE;
                 }
-            } finally {
-                finishedWorkers.countDown();
+                return existingUsers.containsUid(ldapUserIdentity.getUid()) ? ExistingUser.UID : ExistingUser.USERNAME;
             }
+            return retryPolicy.call(() -> {
+                if (rdbmsLdapUserIdentityDao.get(ldapUserIdentity.getUid()) != null) {
+                    return ExistingUser.UID;
+                }
+                return rdbmsLdapUserIdentityDao.getWithUsername(ldapUserIdentity.getUsername()) != null ? ExistingUser.USERNAME : ExistingUser.NONE;
+            });
+        } finally {
+            metrics.sqlExistenceCheck.recordSince(start);
         }
     }
 
     public static class Mapper implements LdapDataMapper {
 
         public String firstName(String firstname) {
-            if (firstname.contains("á")) {
-                return firstname.replaceAll("á", "a");
-            }
-            return firstname;
+            return firstname.replace('á', 'a');
         }
 
         @Override
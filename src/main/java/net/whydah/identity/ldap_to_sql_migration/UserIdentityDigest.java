@@ -0,0 +1,41 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+/**
+ * 64-bit digests of the content of a user, comparable between the LDAP entry and the SQL row it was migrated to.
+ * <p>
+ * A plaintext password is only represented by whether the user has one: the SQL side holds a salted BCrypt hash, and
+ * comparing it with the LDAP password would mean a BCrypt run per user, so changes of plaintext passwords are not
+ * detected. A {@link PasswordScheme pre-hashed} password counts as none, as it is not migrated.
+ */
+final class UserIdentityDigest {
+    // outside the range of a well formed pre-hashed password
+    private static final String HASHED_PASSWORD = "{}";
+
+    private UserIdentityDigest() {
+    }
+
+    static long of(LDAPUserIdentity user) {
+        String password = user.getPassword();
+        String passwordContent = PasswordScheme.of(password) == null && hasValue(password) ? HASHED_PASSWORD : null;
+        return of(user.getUid(), user.getUsername(), user.getFirstName(), user.getLastName(), user.getPersonRef(), user.getEmail(), user.getCellPhone(), passwordContent);
+    }
+
+    /**
+     * @param password       the password column, holding a plaintext password if any.
+     * @param passwordBCrypt the passwordbcrypt column.
+     */
+    static long ofRow(String uid, String username, String firstName, String lastName, String personRef, String email, String cellPhone, String password, String passwordBCrypt) {
+        String passwordContent = hasValue(password) ? password : hasValue(passwordBCrypt) ? HASHED_PASSWORD : null;
+        return of(uid, username, firstName, lastName, personRef, email, cellPhone, passwordContent);
+    }
+
+    private static long of(String uid, String username, String firstName, String lastName, String personRef, String email, String cellPhone, String passwordContent) {
+        return Fingerprints.of(uid, username, firstName, lastName, personRef, email, cellPhone, passwordContent);
+    }
+
+    static boolean hasValue(String value) {
+        return value != null && !value.isEmpty();
+    }
+}
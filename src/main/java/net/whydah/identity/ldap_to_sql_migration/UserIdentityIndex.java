@@ -0,0 +1,143 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * In-memory index of the uids and usernames that exist in the SQL user table, so that workers can decide between
+ * skip and insert without two SQL lookups per user.
+ * <p>
+ * Only 64-bit {@link Fingerprints} of the values are kept, in two primitive hash sets, which costs between 24 and
+ * 48 bytes per user depending on how full the tables are. Two different values sharing a fingerprint is possible but, at a probability of about n&sup2;/2&sup6;&sup5;
+ * (around 10<sup>-5</sup> for ten million users), far less likely than any other reason for a user to be skipped.
+ * <p>
+ * An index loaded with contents also keeps the {@link UserIdentityDigest content digest} of every row, so that an
+ * upsert can tell the users that changed in LDAP from those that did not without reading their rows again.
+ */
+class UserIdentityIndex {
+    private static final int FETCH_SIZE = 10000;
+
+    private final LongHashSet uids;
+    private final LongHashSet usernames;
+    private final LongHashSet contents;
+
+    UserIdentityIndex(int expectedSize) {
+        this(expectedSize, false);
+    }
+
+    UserIdentityIndex(int expectedSize, boolean withContents) {
+        uids = new LongHashSet(expectedSize);
+        usernames = new LongHashSet(expectedSize);
+        contents = withContents ? new LongHashSet(expectedSize) : null;
+    }
+
+    /**
+     * Streams all uids and usernames from the user table into a new index.
+     */
+    static UserIdentityIndex load(DataSource dataSource) throws SQLException {
+        return load(dataSource, false, null);
+    }
+
+    /**
+     * Streams all uids and usernames, and with contents the content digests, from the user table into a new index.
+     * With a shard, only the uids and contents of the users in the shard are kept. The usernames of all users are
+     * kept, as a user of the shard must not take the username of a user of another shard.
+     */
+    static UserIdentityIndex load(DataSource dataSource, boolean withContents, MigrationShard shard) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            int expectedSize;
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(UserIdentitySql.SELECT_COUNT)) {
+                resultSet.next();
+                expectedSize = resultSet.getInt(1);
+            }
+            UserIdentityIndex index = new UserIdentityIndex(expectedSize, withContents);
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false); // some drivers only stream result sets inside a transaction
+            try (Statement statement = connection.createStatement()) {
+                statement.setFetchSize(FETCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery(withContents ? UserIdentitySql.SELECT_FOR_VERIFY : UserIdentitySql.SELECT_UID_AND_USERNAME)) {
+                    while (resultSet.next()) {
+                        if (shard != null && !shard.contains(resultSet.getString(1))) {
+                            index.add(null, resultSet.getString(2));
+                            continue;
+                        }
+                        index.add(resultSet.getString(1), resultSet.getString(2));
+                        if (withContents) {
+                            index.addContent(UserIdentityDigest.ofRow(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3), resultSet.getString(4),
+                                    resultSet.getString(5), resultSet.getString(6), resultSet.getString(7), resultSet.getString(8), resultSet.getString(9)));
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+            return index;
+        }
+    }
+
+    synchronized void add(String uid, String username) {
+        if (uid != null) {
+            uids.add(Fingerprints.of(uid));
+        }
+        if (username != null) {
+            usernames.add(usernameFingerprint(username));
+        }
+    }
+
+    synchronized void addContent(long digest) {
+        contents.add(digest);
+    }
+
+    /**
+     * @return true if a row with exactly this content exists, false if not or if the index was loaded without contents.
+     */
+    synchronized boolean containsContent(long digest) {
+        return contents != null && contents.contains(digest);
+    }
+
+    boolean hasContents() {
+        return contents != null;
+    }
+
+    synchronized boolean containsUid(String uid) {
+        return uids.contains(Fingerprints.of(uid));
+    }
+
+    synchronized boolean contains(String uid, String username) {
+        return uids.contains(Fingerprints.of(uid)) || usernames.contains(usernameFingerprint(username));
+    }
+
+    /**
+     * Atomically checks that neither the uid nor the username exists and registers both, so that two entries with
+     * the same uid or username migrated concurrently cannot both be inserted.
+     *
+     * @return true if the caller now owns the uid and username and should insert the user, false if it exists.
+     */
+    synchronized boolean claim(String uid, String username) {
+        long uidFingerprint = Fingerprints.of(uid);
+        long usernameFingerprint = usernameFingerprint(username);
+        if (uids.contains(uidFingerprint) || usernames.contains(usernameFingerprint)) {
+            return false;
+        }
+        uids.add(uidFingerprint);
+        usernames.add(usernameFingerprint);
+        return true;
+    }
+
+    synchronized int size() {
+        return uids.size();
+    }
+
+    /**
+     * Usernames are unique ignoring case, as in LDAP and in {@link SourceDeduplicator}.
+     */
+    private static long usernameFingerprint(String username) {
+        return Fingerprints.of(username == null ? null : username.toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,21 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+/**
+ * SQL used directly by the migration against the UIB user identity table, for the bulk operations that
+ * {@link net.whydah.identity.user.identity.RDBMSLdapUserIdentityDao} has no support for. Table and column names
+ * must follow the UIB database schema.
+ */
+final class UserIdentitySql {
+
+    static final String TABLE = "UserIdentity";
+
+    static final String SELECT_COUNT = "SELECT COUNT(*) FROM " + TABLE;
+    static final String SELECT_UID_AND_USERNAME = "SELECT id, username FROM " + TABLE;
+    static final String INSERT = "INSERT INTO " + TABLE + " (id, username, firstname, lastname, personref, email, cellphone, password, passwordbcrypt) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final String SELECT_FOR_VERIFY = "SELECT id, username, firstname, lastname, personref, email, cellphone, password, passwordbcrypt FROM " + TABLE;
+    static final String UPDATE = "UPDATE " + TABLE + " SET username = ?, firstname = ?, lastname = ?, personref = ?, email = ?, cellphone = ?, password = ?, passwordbcrypt = ? WHERE id = ?";
+    static final String UPDATE_WITHOUT_PASSWORD = "UPDATE " + TABLE + " SET username = ?, firstname = ?, lastname = ?, personref = ?, email = ?, cellphone = ? WHERE id = ?";
+
+    private UserIdentitySql() {
+    }
+}
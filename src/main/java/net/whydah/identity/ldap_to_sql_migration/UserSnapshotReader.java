@@ -0,0 +1,164 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the users of a snapshot written by {@link UserSnapshotWriter}, one record at a time through a large read
+ * buffer on the file channel. Compression is detected from the content of the file, not its name.
+ * <p>
+ * A snapshot without its end marker, or whose record count does not match the marker, fails with an
+ * {@link UncheckedIOException} from {@link #hasNext()} after the last complete record has been returned.
+ */
+class UserSnapshotReader implements Iterator<LDAPUserIdentity>, Closeable {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final DataInputStream in;
+    private byte[] record = new byte[256];
+    private LDAPUserIdentity next;
+    private long count;
+    private boolean ended;
+
+    UserSnapshotReader(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            InputStream fileIn = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            if (isGzip(fileIn)) {
+                fileIn = new BufferedInputStream(new GZIPInputStream(fileIn, UserSnapshotWriter.BUFFER_SIZE), BUFFER_SIZE);
+            }
+            in = new DataInputStream(fileIn);
+            if (in.readInt() != UserSnapshotWriter.MAGIC) {
+                throw new IOException("Not a user snapshot: " + file);
+            }
+            short version = in.readShort();
+            if (version != UserSnapshotWriter.VERSION) {
+                throw new IOException("Unsupported user snapshot version " + version + ": " + file);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        try {
+            next = readRecord();
+            return next != null;
+        } catch (EOFException e) {
+            throw new UncheckedIOException("User snapshot ends after " + count + " users without its end marker, the export did not complete", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public LDAPUserIdentity next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("next() called after end of iterator, please guard with hasNext()");
+        }
+        LDAPUserIdentity result = next;
+        next = null;
+        return result;
+    }
+
+    private LDAPUserIdentity readRecord() throws IOException {
+        int length = in.readInt();
+        if (length == UserSnapshotWriter.END_OF_RECORDS) {
+            ended = true;
+            long expected = in.readLong();
+            if (expected != count) {
+                throw new IOException("User snapshot holds " + count + " users, but its end marker says " + expected);
+            }
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Corrupt user snapshot record");
+        }
+        if (length > record.length) {
+            record = new byte[Math.max(length, record.length * 2)];
+        }
+        in.readFully(record, 0, length);
+        Fields fields = new Fields(record, length);
+        String uid = fields.next();
+        String username = fields.next();
+        String firstName = fields.next();
+        String lastName = fields.next();
+        String email = fields.next();
+        String password = fields.next();
+        String cellPhone = fields.next();
+        String personRef = fields.next();
+        count++;
+        return new LDAPUserIdentity(uid, username, firstName, lastName, email, password, cellPhone, personRef);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private static class Fields {
+        private final byte[] bytes;
+        private final int length;
+        private int position;
+
+        private Fields(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        private String next() throws IOException {
+            int fieldLength = readInt();
+            if (fieldLength == -1) {
+                return null;
+            }
+            if (fieldLength < 0 || position + fieldLength > length) {
+                throw new IOException("Corrupt user snapshot record");
+            }
+            String value = new String(bytes, position, fieldLength, StandardCharsets.UTF_8);
+            position += fieldLength;
+            return value;
+        }
+
+        private int readInt() throws IOException {
+            if (position + 4 > length) {
+                throw new IOException("Corrupt user snapshot record");
+            }
+            int value = ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16) | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+            position += 4;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes LDAP users to a local snapshot file, so that the users can be loaded into SQL later, and as many times as
+ * needed, without reading LDAP again.
+ * <p>
+ * The file starts with a magic number and a format version, followed by one length-prefixed record per user and
+ * an end marker holding the number of records, so that a reader can tell a complete snapshot from one that was cut
+ * short. A record is the eight fields of the user as length-prefixed UTF-8 strings, where length -1 is null. The
+ * whole file is GZIP compressed if its name ends with {@code .gz}.
+ * <p>
+ * Snapshots hold the password of every user, so the file is created readable by its owner only where the file
+ * system supports it. An existing file is replaced by a new one rather than truncated, as it may be readable by
+ * others.
+ */
+class UserSnapshotWriter implements Closeable {
+    static final int MAGIC = 0x55494253; // "UIBS"
+    static final short VERSION = 1;
+    static final int END_OF_RECORDS = -1;
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private long count;
+    private boolean finished;
+
+    UserSnapshotWriter(Path file) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.deleteIfExists(file);
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        OutputStream fileOut = Files.newOutputStream(file);
+        if (isCompressed(file)) {
+            fileOut = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    synchronized void write(LDAPUserIdentity user) throws IOException {
+        record.reset();
+        writeString(user.getUid());
+        writeString(user.getUsername());
+        writeString(user.getFirstName());
+        writeString(user.getLastName());
+        writeString(user.getEmail());
+        writeString(user.getPassword());
+        writeString(user.getCellPhone());
+        writeString(user.getPersonRef());
+        out.writeInt(record.size());
+        record.writeTo(out);
+        count++;
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            recordOut.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        recordOut.writeInt(bytes.length);
+        recordOut.write(bytes);
+    }
+
+    /**
+     * Marks the snapshot as complete. A snapshot that is closed without being finished is rejected when read.
+     */
+    synchronized void finish() throws IOException {
+        out.writeInt(END_OF_RECORDS);
+        out.writeLong(count);
+        finished = true;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,68 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AuditLogTest {
+
+    @Test
+    public void thatEveryRecordIsWrittenInOrderWithoutPasswords() throws Exception {
+        Path dir = Files.createTempDirectory("audit");
+        Path file = dir.resolve("audit.log");
+        try {
+            try (AuditLog auditLog = AuditLog.toFile(file, false)) {
+                for (int i = 0; i < 10000; i++) {
+                    auditLog.record(AuditLog.Outcome.INSERTED, new LDAPUserIdentity("uid-" + i, "user" + i, "First", "Last", null, "secret" + i, null, null));
+                }
+                auditLog.record(AuditLog.Outcome.FAILED, "uid-x", "userx", "secret", "duplicate\nkey");
+            }
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(10001, lines.size());
+            assertTrue(lines.get(0).endsWith("\tINSERTED\tuid-0\tuser0"));
+            assertTrue(lines.get(9999).endsWith("\tINSERTED\tuid-9999\tuser9999"));
+            assertTrue(lines.get(10000).endsWith("\tFAILED\tuid-x\tuserx\tduplicate key"));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void thatAuditFileIsCreatedOwnerOnlyAndBroaderExistingFileIsRefused() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path dir = Files.createTempDirectory("audit");
+        Path created = dir.resolve("created.log");
+        Path shared = dir.resolve("shared.log");
+        try {
+            AuditLog.toFile(created, true).close();
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(created)));
+            AuditLog.toFile(created, true).close();
+
+            Files.createFile(shared, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            Files.setPosixFilePermissions(shared, PosixFilePermissions.fromString("rw-r--r--"));
+            try {
+                AuditLog.toFile(shared, true).close();
+                fail("Expected the shared audit file to be refused");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("rw-r--r--"));
+            }
+        } finally {
+            Files.deleteIfExists(created);
+            Files.deleteIfExists(shared);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
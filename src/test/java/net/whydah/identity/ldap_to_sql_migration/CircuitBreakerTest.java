@@ -0,0 +1,44 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import javax.naming.CommunicationException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void thatEarlyFailuresDoNotTripBeforeMinimumUsers() {
+        CircuitBreaker breaker = new CircuitBreaker(0.1, 100, 20);
+        for (int i = 0; i < 19; i++) {
+            assertFalse(breaker.record(true));
+        }
+        assertTrue(breaker.record(false));
+    }
+
+    @Test
+    public void thatErrorRateAboveThresholdInWindowTrips() {
+        CircuitBreaker breaker = new CircuitBreaker(0.1, 100, 20);
+        for (int i = 0; i < 100; i++) {
+            breaker.record(i % 20 == 0); // 5%
+        }
+        assertFalse(breaker.isOpen());
+        for (int i = 0; i < 10; i++) {
+            breaker.record(true);
+        }
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void thatOnlyTransientErrorsAreRetried() {
+        assertTrue(RetryPolicy.isTransient(new SQLException("connection reset", "08S01")));
+        assertTrue(RetryPolicy.isTransient(new RuntimeException(new SQLException("deadlock", "40001"))));
+        assertTrue(RetryPolicy.isTransient(new CommunicationException("connection closed")));
+        assertFalse(RetryPolicy.isTransient(new SQLIntegrityConstraintViolationException("duplicate key", "23000")));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException()));
+    }
+}
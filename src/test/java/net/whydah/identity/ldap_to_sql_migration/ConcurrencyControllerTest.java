@@ -0,0 +1,51 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void thatBottleneckGrowsAndHarmfulAdjustmentIsUndone() throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        PipelineStage<Integer> busy = new PipelineStage<>("busy", 2, 8, 4, 1, 0, stop, (List<Integer> items) -> {
+        });
+        PipelineStage<Integer> idle = new PipelineStage<>("idle", 3, 8, 4, 1, 0, stop, (List<Integer> items) -> {
+        });
+        for (int i = 0; i < 3; i++) {
+            busy.put(i);
+        }
+        ConcurrencyController controller = new ConcurrencyController(Arrays.<PipelineStage<?>>asList(busy, idle), () -> 0);
+
+        controller.tick(100);
+        assertEquals(3, busy.getActiveThreads());
+        controller.tick(120);
+        assertEquals(4, busy.getActiveThreads());
+        controller.tick(80);
+        assertEquals(3, busy.getActiveThreads());
+        for (int i = 0; i < ConcurrencyController.COOLDOWN_TICKS; i++) {
+            controller.tick(80);
+            assertEquals(3, busy.getActiveThreads());
+        }
+        controller.tick(80);
+        assertEquals(4, busy.getActiveThreads());
+        assertEquals(3, idle.getActiveThreads());
+    }
+
+    @Test
+    public void thatIdleStageShrinksWhenNothingIsQueued() {
+        AtomicBoolean stop = new AtomicBoolean();
+        PipelineStage<Integer> idle = new PipelineStage<>("idle", 3, 8, 4, 1, 0, stop, (List<Integer> items) -> {
+        });
+        ConcurrencyController controller = new ConcurrencyController(Arrays.<PipelineStage<?>>asList(idle), () -> 0);
+        controller.tick(100);
+        controller.tick(100);
+        controller.tick(100);
+        assertEquals(1, idle.getActiveThreads());
+    }
+}
@@ -0,0 +1,117 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalSyncTest {
+
+    @Test
+    public void thatEntryModifiedAfterItWasScannedIsReadByTheNextSync() throws Exception {
+        Instant scanStart = Instant.parse("2024-02-01T12:00:00Z");
+        FakeDirectory directory = new FakeDirectory(scanStart);
+        directory.modify("uid-a", Instant.parse("2024-02-01T11:00:00Z"));
+        directory.modify("uid-b", Instant.parse("2024-02-01T11:30:00Z"));
+        // during the scan, uid-a is modified after it has been read, and uid-b just before it is read
+        directory.duringScan = () -> {
+            directory.modify("uid-a", scanStart.plusSeconds(10));
+            directory.modify("uid-b", scanStart.plusSeconds(30));
+        };
+
+        Path dir = Files.createTempDirectory("incremental");
+        Path syncState = dir.resolve("sync.properties");
+        try {
+            MigrationOptions options = MigrationOptions.parse(new String[]{"--dry-run", "--incremental", "--since", "20240201100000Z", "--sync-state", syncState.toString()});
+            new UIBMigration(directory, null, null, null, options).migrateChanges();
+            assertEquals(2, directory.reads.size());
+            Instant mark = SyncHighWaterMark.load(syncState).get();
+            assertTrue("mark " + mark + " must not pass the start of the scan", !mark.isAfter(scanStart));
+
+            directory.duringScan = null;
+            directory.reads.clear();
+            options = MigrationOptions.parse(new String[]{"--dry-run", "--incremental", "--sync-state", syncState.toString()});
+            new UIBMigration(directory, null, null, null, options).migrateChanges();
+            assertTrue(directory.reads.contains("uid-a"));
+        } finally {
+            Files.deleteIfExists(syncState);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void thatRootDseIsReadFromServerUrlWithoutBaseDn() {
+        assertEquals("ldap://localhost:10389/", MigrationLdapUserIdentityDao.serverUrl("ldap://localhost:10389/dc=people,dc=whydah,dc=no"));
+        assertEquals("ldaps://ad.example.com/", MigrationLdapUserIdentityDao.serverUrl("ldaps://ad.example.com"));
+    }
+
+    @Test
+    public void thatUnreadableRootDseFallsBackToNewestModifyTimestamp() throws Exception {
+        Instant newest = Instant.parse("2024-02-01T11:30:00Z");
+        // nothing listens on the port, so the root DSE cannot be read
+        MigrationLdapUserIdentityDao directory = new MigrationLdapUserIdentityDao("ldap://localhost:1/dc=example,dc=com", "admin", "secret", "uid", "username", new UIBMigration.Mapper(), 0, null, 1) {
+            @Override
+            Instant newestModifyTimestamp(Instant since) {
+                return newest;
+            }
+        };
+        assertEquals(newest, directory.serverTime(Instant.parse("2024-02-01T10:00:00Z")));
+    }
+
+    static class FakeDirectory extends MigrationLdapUserIdentityDao {
+        final Map<String, Instant> modified = new TreeMap<>();
+        final List<String> reads = new ArrayList<>();
+        final Instant serverTime;
+        Runnable duringScan;
+
+        FakeDirectory(Instant serverTime) {
+            super("ldap://localhost:1/dc=example,dc=com", "admin", "secret", "uid", "username", new UIBMigration.Mapper(), 0, null, 1);
+            this.serverTime = serverTime;
+        }
+
+        synchronized void modify(String uid, Instant timestamp) {
+            modified.put(uid, timestamp);
+        }
+
+        @Override
+        public Instant serverTime(Instant since) {
+            return serverTime;
+        }
+
+        @Override
+        public Iterable<LDAPUserIdentity> modifiedUsersWithPassword(LdapScanPartition partition, Instant since) {
+            List<String> uids = new ArrayList<>(modified.keySet()); // ordered by uid, not by timestamp
+            return () -> new Iterator<LDAPUserIdentity>() {
+                int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    while (next < uids.size() && modified.get(uids.get(next)).isBefore(since)) {
+                        next++;
+                    }
+                    return next < uids.size();
+                }
+
+                @Override
+                public LDAPUserIdentity next() {
+                    String uid = uids.get(next++);
+                    reads.add(uid);
+                    if (next == 1 && duringScan != null) {
+                        duringScan.run();
+                    }
+                    return new LDAPUserIdentity(uid, uid + ".username", "First", "Last", null, "secret", null, null);
+                }
+            };
+        }
+    }
+}
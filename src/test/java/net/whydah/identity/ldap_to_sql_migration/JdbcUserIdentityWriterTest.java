@@ -0,0 +1,165 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.BCryptService;
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+import net.whydah.identity.user.identity.UserIdentityConverter;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JdbcUserIdentityWriterTest {
+
+    @Test
+    public void thatFailingBatchIsSplitUntilOnlyTheBadRowIsLeft() throws SQLException {
+        UserIdentityConverter converter = new UserIdentityConverter(new BCryptService("4HbdiT8Nmw1QrnE6We", 4));
+        List<RDBMSUserIdentity> batch = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            batch.add(converter.convertFromLDAPUserIdentity(new LDAPUserIdentity("uid-" + i, "user" + i, "First", "Last", "user" + i + "@example.com", "secret" + i, "+4712345678", "ref-" + i)));
+        }
+
+        List<String> pendingUids = new ArrayList<>();
+        List<String> committedUids = new ArrayList<>();
+        PreparedStatement statement = mock(PreparedStatement.class);
+        doAnswer(invocation -> {
+            if (invocation.<Integer>getArgument(0) == 1) {
+                pendingUids.add(invocation.getArgument(1));
+            }
+            return null;
+        }).when(statement).setString(anyInt(), any());
+        when(statement.executeBatch()).thenAnswer(invocation -> {
+            try {
+                if (pendingUids.contains("uid-5")) {
+                    throw new SQLException("unique constraint violation");
+                }
+                committedUids.addAll(pendingUids);
+                return new int[pendingUids.size()];
+            } finally {
+                pendingUids.clear();
+            }
+        });
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        List<JdbcUserIdentityWriter.Failure> failures = new JdbcUserIdentityWriter(dataSource).write(batch);
+
+        assertEquals(1, failures.size());
+        assertEquals("uid-5", failures.get(0).identity.getUid());
+        assertEquals(7, committedUids.size());
+        assertFalse(committedUids.contains("uid-5"));
+    }
+
+    @Test
+    public void thatUpdateOfMissingRowFails() throws SQLException {
+        UserIdentityConverter converter = new UserIdentityConverter(new BCryptService("4HbdiT8Nmw1QrnE6We", 4));
+        List<RDBMSUserIdentity> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            batch.add(converter.convertFromLDAPUserIdentity(new LDAPUserIdentity("uid-" + i, "user" + i, "First", "Last", "user" + i + "@example.com", "secret" + i, "+4712345678", "ref-" + i)));
+        }
+
+        List<String> pendingUids = new ArrayList<>();
+        PreparedStatement statement = mock(PreparedStatement.class);
+        doAnswer(invocation -> {
+            if (invocation.<Integer>getArgument(0) == 9) {
+                pendingUids.add(invocation.getArgument(1));
+            }
+            return null;
+        }).when(statement).setString(anyInt(), any());
+        when(statement.executeBatch()).thenAnswer(invocation -> {
+            int[] updateCounts = new int[pendingUids.size()];
+            for (int i = 0; i < updateCounts.length; i++) {
+                updateCounts[i] = "uid-2".equals(pendingUids.get(i)) ? 0 : 1;
+            }
+            pendingUids.clear();
+            return updateCounts;
+        });
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(UserIdentitySql.UPDATE)).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        List<JdbcUserIdentityWriter.Failure> failures = new JdbcUserIdentityWriter(dataSource).update(batch);
+
+        assertEquals(1, failures.size());
+        assertEquals("uid-2", failures.get(0).identity.getUid());
+    }
+
+    @Test
+    public void thatUpdateOfPreHashedUserKeepsThePasswordColumns() throws SQLException {
+        UserIdentityConverter converter = new UserIdentityConverter(new BCryptService("4HbdiT8Nmw1QrnE6We", 4));
+        List<RDBMSUserIdentity> batch = new ArrayList<>();
+        batch.add(converter.convertFromLDAPUserIdentity(new LDAPUserIdentity("uid-1", "user1", "First", "Last", null, "secret", null, null)));
+        batch.add(new PreHashedUserIdentity(new LDAPUserIdentity("uid-2", "user2", "First", "Last", null, "{SSHA}c2VjcmV0c2VjcmV0c2VjcmV0c2VjcmV0c2FsdA==", null, null)));
+
+        List<String> statements = new ArrayList<>();
+        List<Integer> withoutPasswordParameters = new ArrayList<>();
+        PreparedStatement update = mock(PreparedStatement.class);
+        when(update.executeBatch()).thenReturn(new int[]{1});
+        PreparedStatement updateWithoutPassword = mock(PreparedStatement.class);
+        doAnswer(invocation -> {
+            withoutPasswordParameters.add(invocation.getArgument(0));
+            return null;
+        }).when(updateWithoutPassword).setString(anyInt(), any());
+        when(updateWithoutPassword.executeBatch()).thenReturn(new int[]{1});
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> {
+            String sql = invocation.getArgument(0);
+            statements.add(sql);
+            return UserIdentitySql.UPDATE_WITHOUT_PASSWORD.equals(sql) ? updateWithoutPassword : update;
+        });
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        List<JdbcUserIdentityWriter.Failure> failures = new JdbcUserIdentityWriter(dataSource).update(batch);
+
+        assertEquals(0, failures.size());
+        assertEquals(Arrays.asList(UserIdentitySql.UPDATE, UserIdentitySql.UPDATE_WITHOUT_PASSWORD), statements);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), withoutPasswordParameters);
+    }
+
+    @Test
+    public void thatDeadlockedBatchIsRetriedWholeBeforeSplitting() throws SQLException {
+        UserIdentityConverter converter = new UserIdentityConverter(new BCryptService("4HbdiT8Nmw1QrnE6We", 4));
+        List<RDBMSUserIdentity> batch = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            batch.add(converter.convertFromLDAPUserIdentity(new LDAPUserIdentity("uid-" + i, "user" + i, "First", "Last", "user" + i + "@example.com", "secret" + i, "+4712345678", "ref-" + i)));
+        }
+
+        AtomicInteger executions = new AtomicInteger();
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeBatch()).thenAnswer(invocation -> {
+            if (executions.incrementAndGet() <= 2) {
+                throw new SQLTransactionRollbackException("deadlock", "40001");
+            }
+            return new int[8];
+        });
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        List<JdbcUserIdentityWriter.Failure> failures = new JdbcUserIdentityWriter(dataSource, new RetryPolicy(3, 1, 1)).write(batch);
+
+        assertEquals(0, failures.size());
+        assertEquals(3, executions.get());
+    }
+}
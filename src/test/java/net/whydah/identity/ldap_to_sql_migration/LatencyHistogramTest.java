@@ -0,0 +1,56 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void thatEveryValueFallsInBucketWithinPrecision() {
+        for (long micros = 0; micros < 10_000_000; micros = micros < 100 ? micros + 1 : micros * 11 / 10) {
+            int bucket = LatencyHistogram.bucket(micros);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertTrue(micros <= upperBound);
+            assertTrue(upperBound <= micros + micros / 8);
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBound(bucket - 1) < micros);
+            }
+        }
+    }
+
+    @Test
+    public void thatPercentilesAreWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(500, histogram.getPercentileMillis(0.5), 500 * 0.125);
+        assertEquals(990, histogram.getPercentileMillis(0.99), 990 * 0.125);
+        assertEquals(1000, histogram.getMaxMillis(), 0.001);
+    }
+
+    @Test
+    public void thatHistogramsCanBeMergedAndSummarized() {
+        LatencyHistogram first = new LatencyHistogram("test");
+        LatencyHistogram second = new LatencyHistogram("test");
+        first.record(2, TimeUnit.MILLISECONDS);
+        second.record(40, TimeUnit.MILLISECONDS);
+        first.add(second);
+        assertEquals(2, first.getCount());
+        assertEquals(40, first.getMaxMillis(), 0.001);
+        assertEquals(2, first.buckets().length);
+
+        MigrationMetrics metrics = new MigrationMetrics(() -> 0, 0);
+        metrics.ldapFetch.add(first);
+        String json = metrics.toJson(Collections.singletonMap("written", 2L));
+        assertTrue(json.contains("\"written\": 2"));
+        assertTrue(json.contains("\"ldap.fetch\": {\"count\": 2"));
+    }
+}
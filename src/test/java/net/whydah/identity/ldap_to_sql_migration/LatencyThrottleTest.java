@@ -0,0 +1,54 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyThrottleTest {
+
+    @Test
+    public void thatRateBacksOffAboveTargetAndRecoversBelowIt() {
+        RateLimiter limiter = new RateLimiter("test", 0);
+        LatencyThrottle throttle = new LatencyThrottle(limiter, 0, 50, 1);
+
+        throttle.tick(80, 1000);
+        assertEquals(700, limiter.getRate(), 0.001);
+        throttle.tick(80, 700);
+        assertEquals(490, limiter.getRate(), 0.001);
+
+        throttle.tick(20, 490);
+        assertEquals(540, limiter.getRate(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            throttle.tick(20, 490);
+        }
+        assertEquals(0, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void thatConfiguredRateIsNeverExceeded() {
+        RateLimiter limiter = new RateLimiter("test", 100);
+        LatencyThrottle throttle = new LatencyThrottle(limiter, 100, 50, 1);
+
+        throttle.tick(80, 100);
+        assertEquals(70, limiter.getRate(), 0.001);
+        for (int i = 0; i < 10; i++) {
+            throttle.tick(20, 70);
+        }
+        assertEquals(100, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void thatLimiterHoldsTheRate() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("test", 200);
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(5);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 400 && elapsedMillis < 2000);
+        assertEquals(100, limiter.getAcquired());
+    }
+}
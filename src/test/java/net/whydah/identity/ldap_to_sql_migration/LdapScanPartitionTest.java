@@ -0,0 +1,43 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LdapScanPartitionTest {
+
+    @Test
+    public void thatNoPartitioningGivesSingleFullScan() {
+        List<LdapScanPartition> partitions = LdapScanPartition.partitions(Collections.<String>emptyList(), "uid", null);
+        assertEquals(1, partitions.size());
+        assertEquals("", partitions.get(0).getBase());
+        assertNull(partitions.get(0).getFilter());
+        assertEquals("(uid=*)", partitions.get(0).combinedFilter("(uid=*)"));
+    }
+
+    @Test
+    public void thatPrefixPartitionsIncludeRemainder() {
+        List<LdapScanPartition> partitions = LdapScanPartition.partitions(null, "uid", "aBb*");
+        assertEquals(4, partitions.size());
+        assertEquals("(uid=a*)", partitions.get(0).getFilter());
+        assertEquals("(uid=b*)", partitions.get(1).getFilter());
+        assertEquals("(uid=\\2a*)", partitions.get(2).getFilter());
+        assertEquals("(!(|(uid=a*)(uid=b*)(uid=\\2a*)))", partitions.get(3).getFilter());
+        assertEquals("(&(uid=*)(uid=a*))", partitions.get(0).combinedFilter("(uid=*)"));
+    }
+
+    @Test
+    public void thatBasesAndPrefixesAreCombined() {
+        List<LdapScanPartition> partitions = LdapScanPartition.partitions(Arrays.asList("ou=a", "ou=b"), "uid", "0");
+        assertEquals(4, partitions.size());
+        assertEquals("ou=a", partitions.get(0).getBase());
+        assertEquals("ou=a", partitions.get(1).getBase());
+        assertEquals("ou=b", partitions.get(2).getBase());
+        assertEquals("(!(|(uid=0*)))", partitions.get(3).getFilter());
+    }
+}
@@ -0,0 +1,59 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsSummaryMergerTest {
+
+    @Test
+    public void thatCountersAndHistogramsOfShardsAreAdded() {
+        MigrationMetrics fast = new MigrationMetrics(() -> 100, 0);
+        MigrationMetrics slow = new MigrationMetrics(() -> 100, 0);
+        for (int i = 0; i < 100; i++) {
+            fast.bcrypt.record(10, TimeUnit.MILLISECONDS);
+            slow.bcrypt.record(100, TimeUnit.MILLISECONDS);
+        }
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("migrated", 100L);
+        counters.put("written", 90L);
+
+        String merged = MetricsSummaryMerger.merge(Arrays.asList(fast.toJson(counters), slow.toJson(counters)));
+
+        assertTrue(merged, merged.contains("\"migrated\": 200"));
+        assertTrue(merged, merged.contains("\"written\": 180"));
+        assertTrue(merged, merged.contains("\"bcrypt\": {\"count\": 200, \"meanMillis\": 55.000, \"p50Millis\": 10."));
+        assertTrue(merged, merged.contains("\"maxMillis\": 100.000"));
+        assertTrue(merged, merged.contains("\"ldap.fetch\": {\"count\": 0"));
+    }
+
+    @Test
+    public void thatCompletedUsersOfShortRunsAreSummedExactly() {
+        MigrationMetrics first = new MigrationMetrics(() -> 7, 0);
+        MigrationMetrics second = new MigrationMetrics(() -> 5, 0);
+        String firstSummary = first.toJson(Collections.singletonMap("migrated", 7L));
+        assertTrue(firstSummary, firstSummary.contains("\"elapsedSeconds\": 0,\n  \"completedUsers\": 7,"));
+
+        String merged = MetricsSummaryMerger.merge(Arrays.asList(firstSummary, second.toJson(Collections.singletonMap("migrated", 5L))));
+
+        assertTrue(merged, merged.contains("\"completedUsers\": 12,"));
+    }
+
+    @Test
+    public void thatMergedSummaryCanBeMergedAgain() {
+        MigrationMetrics metrics = new MigrationMetrics(() -> 10, 0);
+        metrics.map.record(5, TimeUnit.MILLISECONDS);
+        String summary = metrics.toJson(Collections.singletonMap("migrated", 10L));
+
+        String merged = MetricsSummaryMerger.merge(Collections.singletonList(summary));
+
+        assertEquals(merged, MetricsSummaryMerger.merge(Collections.singletonList(merged)));
+    }
+}
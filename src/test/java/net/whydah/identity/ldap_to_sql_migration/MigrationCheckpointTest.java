@@ -0,0 +1,80 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MigrationCheckpointTest {
+
+    @Test
+    public void thatCompletedPartitionsAndCountersSurviveResume() throws Exception {
+        Path dir = Files.createTempDirectory("checkpoint");
+        Path file = dir.resolve("checkpoint.properties");
+        try {
+            MigrationCheckpoint first = MigrationCheckpoint.load(file);
+            assertTrue(first.getCompletedPartitions().isEmpty());
+            first.complete("(uid=a*)", 10, 4, 5, 1);
+            first.save();
+
+            MigrationCheckpoint second = MigrationCheckpoint.load(file);
+            assertTrue(second.isComplete("(uid=a*)"));
+            assertFalse(second.isComplete("(uid=b*)"));
+            assertEquals(5, second.written);
+            second.complete("(uid=b*)", 3, 0, 3, 0);
+            second.complete("(uid=a*)", 10, 10, 0, 0);
+            second.save();
+
+            MigrationCheckpoint third = MigrationCheckpoint.load(file);
+            assertEquals(2, third.getCompletedPartitions().size());
+            assertEquals(13, third.migrated);
+            assertEquals(4, third.skipped);
+            assertEquals(8, third.written);
+            assertEquals(1, third.failed);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void thatUsersOfIncompletePartitionsAreNotCounted() {
+        PartitionProgress complete = new PartitionProgress(new LdapScanPartition("(uid=a*)", "", "(uid=a*)"));
+        PartitionProgress interrupted = new PartitionProgress(new LdapScanPartition("(uid=b*)", "", "(uid=b*)"));
+        new MigrationItem(null, complete).written();
+        new MigrationItem(null, complete).skipped();
+        new MigrationItem(null, interrupted).written();
+        interrupted.extracted();
+        interrupted.extracted();
+        complete.extracted();
+        complete.extracted();
+        complete.extractionFinished();
+        interrupted.extractionFinished();
+
+        MigrationCheckpoint checkpoint = new MigrationCheckpoint(null);
+        for (PartitionProgress progress : new PartitionProgress[]{complete, interrupted}) {
+            if (progress.isComplete()) {
+                checkpoint.complete(progress.getName(), progress.getDoneCount(), progress.getSkippedCount(), progress.getWrittenCount(), progress.getFailedCount());
+            }
+        }
+        assertEquals(2, checkpoint.migrated);
+        assertEquals(1, checkpoint.skipped);
+        assertEquals(1, checkpoint.written);
+    }
+
+    @Test
+    public void thatPartitionIsCompleteOnlyWhenReadToEndAndAllUsersDone() {
+        PartitionProgress progress = new PartitionProgress(LdapScanPartition.ALL);
+        progress.extracted();
+        progress.extracted();
+        progress.done();
+        progress.extractionFinished();
+        assertFalse(progress.isComplete());
+        progress.done();
+        assertTrue(progress.isComplete());
+    }
+}
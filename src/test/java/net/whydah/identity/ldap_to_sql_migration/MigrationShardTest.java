@@ -0,0 +1,38 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MigrationShardTest {
+
+    @Test
+    public void thatShardsAreDisjointAndCoverAllUids() {
+        MigrationShard[] shards = {MigrationShard.parse("0/3"), MigrationShard.parse("1/3"), MigrationShard.parse("2/3")};
+        int[] sizes = new int[shards.length];
+        for (int i = 0; i < 30000; i++) {
+            int owners = 0;
+            for (int s = 0; s < shards.length; s++) {
+                if (shards[s].contains("uid-" + i)) {
+                    owners++;
+                    sizes[s]++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+        for (int size : sizes) {
+            assertTrue(size > 9000 && size < 11000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatShardOutsideCountIsRejected() {
+        MigrationShard.parse("3/3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatMalformedShardIsRejected() {
+        MigrationShard.parse("1-3");
+    }
+}
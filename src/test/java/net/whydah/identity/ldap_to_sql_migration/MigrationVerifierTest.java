@@ -0,0 +1,83 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MigrationVerifierTest {
+
+    @Test
+    public void thatPrefixRangesCoverBothCasesAndTheRemainder() {
+        List<MigrationVerifier.Range> ranges = MigrationVerifier.ranges(Arrays.asList("ou=a", "ou=b"), "uid", "a_");
+
+        assertEquals(3, ranges.size());
+        assertEquals(" WHERE (id LIKE ? ESCAPE '!' OR id LIKE ? ESCAPE '!')", ranges.get(0).sqlCondition);
+        assertEquals(Arrays.asList("a%", "A%"), ranges.get(0).sqlParameters);
+        assertEquals(" WHERE (id LIKE ? ESCAPE '!')", ranges.get(1).sqlCondition);
+        assertEquals(Collections.singletonList("!_%"), ranges.get(1).sqlParameters);
+        assertEquals(" WHERE NOT ((id LIKE ? ESCAPE '!' OR id LIKE ? ESCAPE '!') OR (id LIKE ? ESCAPE '!'))", ranges.get(2).sqlCondition);
+        assertEquals(Arrays.asList("a%", "A%", "!_%"), ranges.get(2).sqlParameters);
+        for (MigrationVerifier.Range range : ranges) {
+            assertEquals(2, range.partitions.size());
+        }
+        assertEquals("(uid=a*)", ranges.get(0).partitions.get(1).getFilter());
+        assertEquals("ou=b", ranges.get(0).partitions.get(1).getBase());
+    }
+
+    @Test
+    public void thatNoPrefixesGiveOneUnconditionalRange() {
+        List<MigrationVerifier.Range> ranges = MigrationVerifier.ranges(Collections.<String>emptyList(), "uid", null);
+
+        assertEquals(1, ranges.size());
+        assertEquals("", ranges.get(0).sqlCondition);
+        assertEquals(LdapScanPartition.ALL.getBase(), ranges.get(0).partitions.get(0).getBase());
+    }
+
+    @Test
+    public void thatDigestOfMigratedRowMatchesLdapEntry() {
+        LDAPUserIdentity ldapUser = new LDAPUserIdentity("uid-1", "user1", "First", "Last", "user1@example.com", "secret", "+4712345678", "ref-1");
+
+        long ldapDigest = UserIdentityDigest.of(ldapUser);
+
+        assertEquals(ldapDigest, UserIdentityDigest.ofRow("uid-1", "user1", "First", "Last", "ref-1", "user1@example.com", "+4712345678", null, "$2a$04$hash"));
+        assertNotEquals(ldapDigest, UserIdentityDigest.ofRow("uid-1", "user1", "First", "Last", "ref-1", "user1@example.com", "+4712345678", null, null));
+        assertNotEquals(ldapDigest, UserIdentityDigest.ofRow("uid-1", "user1", "Firs", "tLast", "ref-1", "user1@example.com", "+4712345678", null, "$2a$04$hash"));
+    }
+
+    @Test
+    public void thatVerificationIsSplitIntoRangesWithoutPrefixes() {
+        List<MigrationVerifier.Range> ranges = new MigrationVerifier(ldapDao(), null, Collections.<String>emptyList(), null, 4).ranges;
+
+        assertEquals(MigrationVerifier.DEFAULT_PREFIXES.length() + 1, ranges.size());
+        assertEquals("(uid=0*)", ranges.get(0).partitions.get(0).getFilter());
+        assertEquals(2, new MigrationVerifier(ldapDao(), null, Collections.<String>emptyList(), "a", 4).ranges.size());
+    }
+
+    @Test
+    public void thatDuplicateUidsInLdapAreCountedAndReported() {
+        MigrationVerifier verifier = new MigrationVerifier(ldapDao(), null, Collections.<String>emptyList(), null, 1);
+        LDAPUserIdentity first = new LDAPUserIdentity("uid-1", "user1", "First", "Last", null, "secret", null, null);
+        LDAPUserIdentity second = new LDAPUserIdentity("uid-1", "user1b", "Other", "Last", null, "secret", null, null);
+        LDAPUserIdentity third = new LDAPUserIdentity("uid-2", "user2", "First", "Last", null, "secret", null, null);
+        Map<String, Long> ldapDigests = new HashMap<>();
+
+        verifier.addLdapDigests(ldapDigests, Arrays.asList(first, second, third));
+
+        assertEquals(3, verifier.ldapCount.get());
+        assertEquals(1, verifier.duplicateCount.get());
+        assertEquals(2, ldapDigests.size());
+        assertEquals(UserIdentityDigest.of(first), (long) ldapDigests.get("uid-1"));
+    }
+
+    private static MigrationLdapUserIdentityDao ldapDao() {
+        return new MigrationLdapUserIdentityDao("ldap://localhost:1/dc=example,dc=com", "admin", "secret", "uid", "username", new UIBMigration.Mapper(), 0, null, 1);
+    }
+}
@@ -0,0 +1,35 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PasswordSchemeTest {
+
+    @Test
+    public void thatWellFormedHashesAreRecognized() throws Exception {
+        byte[] sha = MessageDigest.getInstance("SHA-1").digest("secret".getBytes(StandardCharsets.UTF_8));
+        byte[] saltedSha = new byte[sha.length + 4];
+        System.arraycopy(sha, 0, saltedSha, 0, sha.length);
+
+        assertEquals(PasswordScheme.SHA, PasswordScheme.of("{SHA}" + Base64.getEncoder().encodeToString(sha)));
+        assertEquals(PasswordScheme.SSHA, PasswordScheme.of("{ssha}" + Base64.getEncoder().encodeToString(saltedSha)));
+        assertEquals(PasswordScheme.BCRYPT, PasswordScheme.of("{BCRYPT}$2b$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy"));
+    }
+
+    @Test
+    public void thatPlaintextIsNotMistakenForAHash() {
+        assertNull(PasswordScheme.of(null));
+        assertNull(PasswordScheme.of("secret"));
+        assertNull(PasswordScheme.of("{SHA}secret"));
+        assertNull(PasswordScheme.of("{SSHA}c2VjcmV0"));
+        assertNull(PasswordScheme.of("{BCRYPT}secret"));
+        assertNull(PasswordScheme.of("{CLEARTEXT}secret"));
+        assertNull(PasswordScheme.of("{}secret"));
+    }
+}
@@ -0,0 +1,93 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStageTest {
+
+    @Test
+    public void thatChainedStagesDeliverEveryItemInBoundedBatches() throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        ConcurrentHashMap.KeySetView<Integer, Boolean> written = ConcurrentHashMap.newKeySet();
+        AtomicInteger largestBatch = new AtomicInteger();
+        PipelineStage<Integer> last = new PipelineStage<>("last", 3, 10, 7, 20, stop, (List<Integer> items) -> {
+            largestBatch.accumulateAndGet(items.size(), Math::max);
+            written.addAll(items);
+        });
+        PipelineStage<Integer> first = new PipelineStage<>("first", 4, 5, stop, (List<Integer> items) -> {
+            for (Integer item : items) {
+                last.put(item * 2);
+            }
+        });
+        last.start();
+        first.start();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(first.put(i));
+        }
+        first.finish();
+        last.finish();
+
+        assertEquals(1000, written.size());
+        assertTrue(written.contains(1998));
+        assertTrue(largestBatch.get() <= 7);
+        assertFalse(stop.get());
+    }
+
+    @Test
+    public void thatFailingHandlerStopsThePipeline() throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        PipelineStage<Integer> stage = new PipelineStage<>("failing", 2, 1, stop, (List<Integer> items) -> {
+            throw new IllegalStateException("bad item " + items);
+        });
+        stage.start();
+        stage.put(1);
+        stage.finish();
+        assertTrue(stop.get());
+        assertFalse(stage.put(2));
+    }
+
+    /**
+     * Side-by-side throughput of platform and virtual threads on simulated blocking I/O: every item sleeps for a
+     * few milliseconds, like a JDBC round trip. Prints items/s for each mode.
+     */
+    @Test
+    public void thatVirtualThreadsProcessBlockingWorkLikePlatformThreads() throws InterruptedException {
+        Assume.assumeTrue("Virtual threads require JDK 21+", VirtualThreads.isAvailable());
+        int items = 2000;
+        double platform = blockingThroughput(items, 16, false);
+        double virtualSameBound = blockingThroughput(items, 16, true);
+        double virtualHighBound = blockingThroughput(items, 512, true);
+        System.out.printf("Blocking work, %d items: platform(16)=%.0f/s, virtual(16)=%.0f/s, virtual(512)=%.0f/s%n", items, platform, virtualSameBound, virtualHighBound);
+        assertTrue(virtualHighBound > platform);
+    }
+
+    private static double blockingThroughput(int items, int concurrency, boolean virtualThreads) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger handled = new AtomicInteger();
+        PipelineStage<Integer> stage = new PipelineStage<>("blocking", concurrency, concurrency * 2, stop, (List<Integer> batch) -> {
+            Thread.sleep(5);
+            handled.addAndGet(batch.size());
+        });
+        if (virtualThreads) {
+            stage.withVirtualThreads();
+        }
+        long start = System.nanoTime();
+        stage.start();
+        for (int i = 0; i < items; i++) {
+            stage.put(i);
+        }
+        stage.finish();
+        long elapsed = System.nanoTime() - start;
+        assertEquals(items, handled.get());
+        return items * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,158 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.Main;
+import net.whydah.identity.config.ApplicationMode;
+import net.whydah.identity.dataimport.DatabaseMigrationHelper;
+import net.whydah.identity.ldapserver.EmbeddedADS;
+import net.whydah.identity.user.identity.BCryptService;
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.LdapUserIdentityDao;
+import net.whydah.identity.user.identity.RDBMSLdapUserIdentityDao;
+import net.whydah.identity.user.identity.RDBMSLdapUserIdentityRepository;
+import net.whydah.identity.user.identity.RDBMSUserIdentity;
+import net.whydah.identity.util.FileUtils;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.constretto.ConstrettoBuilder;
+import org.constretto.ConstrettoConfiguration;
+import org.constretto.model.Resource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migrates users with {SSHA} and {BCRYPT} passwords to HSQLDB and logs in through the UIB repository, which verifies
+ * only its own BCrypt hashes. The hash must not be accepted as a password, and the user with a plaintext password
+ * migrated in the same run must be able to log in.
+ */
+public class PreHashedPasswordLoginTest {
+
+    static final String ldapPath = "target/PreHashedPasswordLoginTest/ldap";
+    private static final String SSHA_PLAINTEXT = "secret-ssha";
+    private static final String BCRYPT_PASSWORD = "{BCRYPT}$2b$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy";
+
+    static Main main;
+    static ConstrettoConfiguration configuration;
+    static BasicDataSource dataSource;
+    static String primaryLdapUrl;
+
+    @BeforeClass
+    public static void setUp() {
+        FileUtils.deleteDirectory(new File(ldapPath));
+
+        ApplicationMode.setCIMode();
+        configuration = new ConstrettoBuilder()
+                .createPropertiesStore()
+                .addResource(Resource.create("classpath:useridentitybackend.properties"))
+                .addResource(Resource.create("classpath:useridentitybackend-test.properties"))
+                .done()
+                .getConfiguration();
+
+        Map<String, String> ldapProperties = Main.ldapProperties(configuration);
+        ldapProperties.put("ldap.embedded.directory", ldapPath);
+        ldapProperties.put(EmbeddedADS.PROPERTY_BIND_PORT, "10789");
+        primaryLdapUrl = "ldap://localhost:10789/dc=people,dc=whydah,dc=no";
+        ldapProperties.put("ldap.primary.url", primaryLdapUrl);
+
+        main = new Main(6653);
+        main.startEmbeddedDS(ldapProperties);
+
+        dataSource = UIBMigration.initBasicDataSource(configuration);
+        DatabaseMigrationHelper dbHelper = new DatabaseMigrationHelper(dataSource);
+        dbHelper.cleanDatabase();
+        dbHelper.upgradeDatabase();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (main != null) {
+            main.stopEmbeddedDS();
+        }
+    }
+
+    @Test
+    public void thatPreHashedPasswordsCannotBeUsedToLogInAfterMigration() throws Exception {
+        String admPrincipal = configuration.evaluateToString("ldap.primary.admin.principal");
+        String admCredentials = configuration.evaluateToString("ldap.primary.admin.credentials");
+        String uidAttribute = configuration.evaluateToString("ldap.primary.uid.attribute");
+        String usernameAttribute = configuration.evaluateToString("ldap.primary.username.attribute");
+        LdapUserIdentityDao ldapUserIdentityDao = new LdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, configuration.evaluateToString("ldap.primary.readonly"));
+        String sshaPassword = ssha(SSHA_PLAINTEXT);
+        assertTrue(ldapUserIdentityDao.addUserIdentity(new LDAPUserIdentity("plain.uid", "plain", "Plain", "User", "plain@example.com", "secret-plain", null, null)));
+        assertTrue(ldapUserIdentityDao.addUserIdentity(new LDAPUserIdentity("ssha.uid", "ssha", "Ssha", "User", "ssha@example.com", sshaPassword, null, null)));
+        assertTrue(ldapUserIdentityDao.addUserIdentity(new LDAPUserIdentity("bcrypt.uid", "bcrypt", "Bcrypt", "User", "bcrypt@example.com", BCRYPT_PASSWORD, null, null)));
+
+        MigrationLdapUserIdentityDao migrationLdapUserIdentityDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, new UIBMigration.Mapper());
+        RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao = new RDBMSLdapUserIdentityDao(dataSource);
+        BCryptService bCryptService = new BCryptService(configuration.evaluateToString("userdb.password.pepper"), configuration.evaluateToInt("userdb.password.bcrypt.preferredcost"));
+        UIBMigration uibMigration = new UIBMigration(migrationLdapUserIdentityDao, rdbmsLdapUserIdentityDao, dataSource, bCryptService, new MigrationOptions());
+        uibMigration.migrate();
+        assertEquals(2, uibMigration.preHashedCount.get());
+
+        RDBMSLdapUserIdentityRepository repository = new RDBMSLdapUserIdentityRepository(rdbmsLdapUserIdentityDao, bCryptService, configuration);
+        assertNotNull(repository.authenticate("plain", "secret-plain"));
+        for (String uid : new String[]{"ssha.uid", "bcrypt.uid"}) {
+            RDBMSUserIdentity migrated = rdbmsLdapUserIdentityDao.get(uid);
+            assertNotNull(migrated);
+            assertNull(migrated.getPassword());
+            assertNull(migrated.getPasswordBCrypt());
+        }
+        assertNull(repository.authenticate("ssha", sshaPassword));
+        assertNull(repository.authenticate("ssha", SSHA_PLAINTEXT));
+        assertNull(repository.authenticate("bcrypt", BCRYPT_PASSWORD));
+    }
+
+    @Test
+    public void thatPasswordSetInUibIsKeptByUpsert() throws Exception {
+        String admPrincipal = configuration.evaluateToString("ldap.primary.admin.principal");
+        String admCredentials = configuration.evaluateToString("ldap.primary.admin.credentials");
+        String uidAttribute = configuration.evaluateToString("ldap.primary.uid.attribute");
+        String usernameAttribute = configuration.evaluateToString("ldap.primary.username.attribute");
+        LdapUserIdentityDao ldapUserIdentityDao = new LdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, configuration.evaluateToString("ldap.primary.readonly"));
+        assertTrue(ldapUserIdentityDao.addUserIdentity(new LDAPUserIdentity("reset.uid", "reset", "Reset", "User", "reset@example.com", ssha("secret-reset"), null, null)));
+
+        MigrationLdapUserIdentityDao migrationLdapUserIdentityDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, new UIBMigration.Mapper());
+        RDBMSLdapUserIdentityDao rdbmsLdapUserIdentityDao = new RDBMSLdapUserIdentityDao(dataSource);
+        BCryptService bCryptService = new BCryptService(configuration.evaluateToString("userdb.password.pepper"), configuration.evaluateToInt("userdb.password.bcrypt.preferredcost"));
+        new UIBMigration(migrationLdapUserIdentityDao, rdbmsLdapUserIdentityDao, dataSource, bCryptService, new MigrationOptions()).migrate();
+
+        // the user sets a new password in UIB
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("UPDATE " + UserIdentitySql.TABLE + " SET passwordbcrypt = ? WHERE id = ?")) {
+            statement.setString(1, bCryptService.hash("new-password"));
+            statement.setString(2, "reset.uid");
+            assertEquals(1, statement.executeUpdate());
+        }
+
+        UIBMigration upsert = new UIBMigration(migrationLdapUserIdentityDao, rdbmsLdapUserIdentityDao, dataSource, bCryptService, MigrationOptions.parse(new String[]{"--upsert"}));
+        upsert.migrate();
+
+        assertTrue(upsert.updatedCount.get() > 0);
+        RDBMSLdapUserIdentityRepository repository = new RDBMSLdapUserIdentityRepository(rdbmsLdapUserIdentityDao, bCryptService, configuration);
+        assertNotNull(repository.authenticate("reset", "new-password"));
+    }
+
+    private static String ssha(String plaintext) throws Exception {
+        byte[] salt = "8bytesal".getBytes(StandardCharsets.UTF_8);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(plaintext.getBytes(StandardCharsets.UTF_8));
+        digest.update(salt);
+        byte[] hash = digest.digest();
+        byte[] hashAndSalt = new byte[hash.length + salt.length];
+        System.arraycopy(hash, 0, hashAndSalt, 0, hash.length);
+        System.arraycopy(salt, 0, hashAndSalt, hash.length, salt.length);
+        return "{SSHA}" + Base64.getEncoder().encodeToString(hashAndSalt);
+    }
+}
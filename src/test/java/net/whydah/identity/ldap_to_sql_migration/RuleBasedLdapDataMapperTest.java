@@ -0,0 +1,102 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RuleBasedLdapDataMapperTest {
+
+    @Test
+    public void thatRulesAreAppliedInOrderPerField() {
+        Properties rules = new Properties();
+        rules.setProperty("firstName.rules", "trim, collapseWhitespace, replace(á=a;Á=A)");
+        rules.setProperty("email.rules", "trim, lowercase, maxLength(10)");
+        rules.setProperty("cellPhone.rules", "strip( -), emptyToNull");
+        rules.setProperty("personRef.rules", "default(n/a)");
+        RuleBasedLdapDataMapper mapper = RuleBasedLdapDataMapper.compile(rules);
+
+        LDAPUserIdentity user = mapper.toLDAPUserIdentity("uid1", "jane", "  Ágnes \t Ása ", "Doe", " Jane@Example.com", null, " - ", "secret");
+
+        assertEquals("Agnes Asa", user.getFirstName());
+        assertEquals("jane@examp", user.getEmail());
+        assertNull(user.getCellPhone());
+        assertEquals("n/a", user.getPersonRef());
+        assertEquals("Doe", user.getLastName());
+        assertEquals("secret", user.getPassword());
+    }
+
+    @Test
+    public void thatUnchangedValuesAreReturnedAsIs() {
+        Properties rules = new Properties();
+        rules.setProperty("lastName.rules", "trim, collapseWhitespace, replace(á=a), strip(-), asciiFold, lowercase, maxLength(20)");
+        RuleBasedLdapDataMapper mapper = RuleBasedLdapDataMapper.compile(rules);
+
+        String lastName = "van der berg";
+        assertSame(lastName, mapper.apply(LdapDataMapper.Field.LAST_NAME, lastName));
+        assertNull(mapper.apply(LdapDataMapper.Field.LAST_NAME, null));
+    }
+
+    @Test
+    public void thatTransformsHandleEdgeCases() {
+        assertEquals("a b", RuleBasedLdapDataMapper.collapseWhitespace(" a\n\nb "));
+        assertEquals("Agnes Asa Ostrom", RuleBasedLdapDataMapper.asciiFold("Ágnes Ása Öström"));
+        assertEquals("", RuleBasedLdapDataMapper.collapseWhitespace("   "));
+    }
+
+    @Test
+    public void thatAttributesCanBeRemapped() {
+        Properties rules = new Properties();
+        rules.setProperty("cellPhone.attribute", "telephoneNumber");
+        RuleBasedLdapDataMapper mapper = RuleBasedLdapDataMapper.compile(rules);
+
+        assertEquals("telephoneNumber", mapper.attributeName(LdapDataMapper.Field.CELL_PHONE));
+        assertEquals("givenName", mapper.attributeName(LdapDataMapper.Field.FIRST_NAME));
+        assertEquals("givenName", new UIBMigration.Mapper().attributeName(LdapDataMapper.Field.FIRST_NAME));
+    }
+
+    @Test
+    public void thatRemappedPasswordIsReadAsStringOrBytes() throws NamingException {
+        Properties rules = new Properties();
+        rules.setProperty("password.attribute", "legacyPassword");
+        MigrationLdapUserIdentityDao dao = new MigrationLdapUserIdentityDao("ldap://localhost:1/dc=example,dc=com", "admin", "secret", "uid", "username",
+                RuleBasedLdapDataMapper.compile(rules), 0, null, 1);
+
+        BasicAttributes attributes = new BasicAttributes(true);
+        attributes.put("uid", "uid1");
+        attributes.put("username", "jane");
+        attributes.put("legacyPassword", "secret");
+        assertEquals("secret", dao.fromLdapAttributesWithPassword(attributes).getPassword());
+
+        attributes.put("legacyPassword", "s\u00e9cret".getBytes(StandardCharsets.UTF_8));
+        assertEquals("s\u00e9cret", dao.fromLdapAttributesWithPassword(attributes).getPassword());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatUnknownTransformFailsAtStartup() {
+        Properties rules = new Properties();
+        rules.setProperty("firstName.rules", "trim, titlecase");
+        RuleBasedLdapDataMapper.compile(rules);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatUnknownFieldFailsAtStartup() {
+        Properties rules = new Properties();
+        rules.setProperty("middleName.rules", "trim");
+        RuleBasedLdapDataMapper.compile(rules);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatUidAttributeCannotBeRemapped() {
+        Properties rules = new Properties();
+        rules.setProperty("uid.attribute", "cn");
+        RuleBasedLdapDataMapper.compile(rules);
+    }
+}
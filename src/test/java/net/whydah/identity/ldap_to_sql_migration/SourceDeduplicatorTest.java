@@ -0,0 +1,69 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SourceDeduplicatorTest {
+
+    @Test
+    public void thatUsersOfHigherSourcesWinOnUidAndUsername() {
+        SourceDeduplicator deduplicator = new SourceDeduplicator(3, 10);
+        assertTrue(deduplicator.claim(0, "uid1", "jane"));
+        assertTrue(deduplicator.claim(0, "uid2", "john"));
+
+        assertFalse(deduplicator.claim(1, "uid1", "jane.emea"));
+        assertFalse(deduplicator.claim(1, "uid3", "JANE"));
+        assertTrue(deduplicator.claim(1, "uid4", "kari"));
+
+        assertFalse(deduplicator.claim(2, "uid4", "kari"));
+        assertTrue(deduplicator.claim(2, "uid5", "jane.emea")); // only claimed by a duplicate that was left out
+
+        assertTrue(deduplicator.accept(0, "uid1", "jane"));
+        assertFalse(deduplicator.accept(1, "uid1", "jane.emea"));
+        assertFalse(deduplicator.accept(1, "uid3", "JANE"));
+        assertTrue(deduplicator.accept(1, "uid4", "kari"));
+        assertFalse(deduplicator.accept(2, "uid4", "kari"));
+        assertTrue(deduplicator.accept(2, "uid5", "jane.emea"));
+    }
+
+    @Test
+    public void thatUsersAddedAfterClaimingAreAcceptedUnlessTheyCollide() {
+        SourceDeduplicator deduplicator = new SourceDeduplicator(2, 10);
+        assertTrue(deduplicator.claim(0, "uid1", "jane"));
+
+        assertTrue(deduplicator.accept(1, "uid9", "new.user"));
+        assertFalse(deduplicator.accept(1, "uid9", "Jane"));
+        assertFalse(deduplicator.accept(1, "uid1", "someone.else"));
+    }
+
+    @Test
+    public void thatUidsDifferingOnlyInCaseAreTheSameUser() {
+        SourceDeduplicator deduplicator = new SourceDeduplicator(2, 10);
+        assertTrue(deduplicator.claim(0, "Jane.Doe", "jane"));
+        assertFalse(deduplicator.claim(1, "jane.doe", "jane.emea"));
+
+        assertTrue(deduplicator.accept(0, "Jane.Doe", "jane"));
+        assertFalse(deduplicator.accept(1, "jane.doe", "jane.emea"));
+        assertFalse(deduplicator.accept(1, "JANE.DOE", "jane.apac"));
+    }
+
+    @Test
+    public void thatPrecedenceReordersSources() {
+        List<LdapSource> sources = Arrays.asList(new LdapSource("primary", null), new LdapSource("emea", null), new LdapSource("apac", null));
+
+        assertEquals(Arrays.asList("primary", "emea", "apac"), LdapSource.names(LdapSource.inPrecedenceOrder(sources, null)));
+        assertEquals(Arrays.asList("apac", "primary", "emea"), LdapSource.names(LdapSource.inPrecedenceOrder(sources, "apac")));
+        assertEquals(Arrays.asList("emea", "apac", "primary"), LdapSource.names(LdapSource.inPrecedenceOrder(sources, " emea, apac ")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatUnknownSourceInPrecedenceIsRejected() {
+        LdapSource.inPrecedenceOrder(Arrays.asList(new LdapSource("primary", null), new LdapSource("emea", null)), "emea,amer");
+    }
+}
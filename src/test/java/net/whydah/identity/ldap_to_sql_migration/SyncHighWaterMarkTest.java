@@ -0,0 +1,46 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SyncHighWaterMarkTest {
+
+    @Test
+    public void thatGeneralizedTimeIsParsedWithOffsetAndFraction() {
+        assertEquals(Instant.parse("2024-01-31T23:59:59Z"), SyncHighWaterMark.parseGeneralizedTime("20240131235959Z"));
+        assertEquals(Instant.parse("2024-01-31T23:59:59Z"), SyncHighWaterMark.parseGeneralizedTime("20240131235959.123Z"));
+        assertEquals(Instant.parse("2024-01-31T22:59:59Z"), SyncHighWaterMark.parseGeneralizedTime("20240131235959+0100"));
+        assertEquals(Instant.parse("2024-01-31T23:59:59Z"), SyncHighWaterMark.parseTimestamp("2024-01-31T23:59:59Z"));
+        assertEquals("20240131235959Z", SyncHighWaterMark.formatGeneralizedTime(Instant.parse("2024-01-31T23:59:59.500Z")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thatInvalidTimestampIsRejected() {
+        SyncHighWaterMark.parseTimestamp("yesterday");
+    }
+
+    @Test
+    public void thatMarkOnlyMovesForwardAndSurvivesRestart() throws Exception {
+        Path dir = Files.createTempDirectory("sync");
+        Path file = dir.resolve("sync.properties");
+        try {
+            SyncHighWaterMark mark = SyncHighWaterMark.load(file);
+            assertNull(mark.get());
+            mark.advance(Instant.parse("2024-02-01T12:00:00Z"));
+            mark.advance(Instant.parse("2024-01-01T12:00:00Z"));
+            mark.advance(null);
+            mark.save();
+
+            assertEquals(Instant.parse("2024-02-01T12:00:00Z").minus(SyncHighWaterMark.CLOCK_SKEW_MARGIN), SyncHighWaterMark.load(file).get());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Generates any number of synthetic LDAP entries for scale tests without keeping them in memory. Entry n is derived
+ * from the seed and n alone, so ranges of entries can be generated by several threads and a run can be repeated
+ * exactly.
+ * <p>
+ * The fields below set the share of entries that are not users, the share of users with each optional attribute and
+ * with non-ASCII names, and the mix of password schemes. The shares that are left over from the password schemes
+ * are plaintext passwords. BCrypt hashes are well formed but random, they exercise the handling of pre-hashed
+ * passwords and cannot be used to authenticate.
+ */
+class SyntheticUserGenerator {
+
+    private static final String[] FIRST_NAMES = {"Jane", "John", "Kari", "Ola", "Anna", "Erik", "Maria", "Lars", "Ingrid", "Per"};
+    private static final String[] NON_ASCII_FIRST_NAMES = {"Ágnes", "Åse", "Øyvind", "Ståle", "José", "Zoë", "Bjørn", "Søren"};
+    private static final String[] LAST_NAMES = {"Doe", "Hansen", "Johansen", "Olsen", "Larsen", "Andersen", "Pedersen", "Nilsen"};
+    private static final String[] NON_ASCII_LAST_NAMES = {"Sæther", "Ødegård", "Müller", "Núñez", "Åsheim", "Brænd"};
+    private static final String BCRYPT_ALPHABET = "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    long seed = 42;
+    double nonUserShare = 0.05;
+    double nonAsciiNameShare = 0.1;
+    double emailShare = 0.9;
+    double cellPhoneShare = 0.6;
+    double personRefShare = 0.5;
+    double noPasswordShare = 0.02;
+    double sshaShare = 0.2;
+    double ssha512Share = 0.05;
+    double bcryptShare = 0.05;
+
+    interface Sink {
+        void user(LDAPUserIdentity user) throws Exception;
+
+        /**
+         * An entry the migration must not pick up, such as an organizational unit, named by its relative DN.
+         */
+        void nonUser(String rdn) throws Exception;
+    }
+
+    /**
+     * Generates entries from (inclusive) to (exclusive).
+     */
+    void generate(long from, long to, Sink sink) throws Exception {
+        for (long n = from; n < to; n++) {
+            SplittableRandom random = random(n);
+            if (random.nextDouble() < nonUserShare) {
+                sink.nonUser("ou=synthetic-" + n);
+            } else {
+                sink.user(user(n, random));
+            }
+        }
+    }
+
+    /**
+     * @return entry n if it is a user, or null if it is not.
+     */
+    LDAPUserIdentity user(long n) {
+        SplittableRandom random = random(n);
+        if (random.nextDouble() < nonUserShare) {
+            return null;
+        }
+        return user(n, random);
+    }
+
+    private SplittableRandom random(long n) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + n);
+    }
+
+    private LDAPUserIdentity user(long n, SplittableRandom random) {
+        boolean nonAscii = random.nextDouble() < nonAsciiNameShare;
+        String firstName = pick(random, nonAscii ? NON_ASCII_FIRST_NAMES : FIRST_NAMES);
+        String lastName = pick(random, nonAscii ? NON_ASCII_LAST_NAMES : LAST_NAMES);
+        String username = firstName.toLowerCase(Locale.ROOT) + "." + lastName.toLowerCase(Locale.ROOT) + "." + n;
+        String uid = new UUID(seed, n).toString();
+        String email = random.nextDouble() < emailShare ? "user" + n + "@example.com" : null;
+        String cellPhone = random.nextDouble() < cellPhoneShare ? "+47" + (90000000 + random.nextInt(10000000)) : null;
+        String personRef = random.nextDouble() < personRefShare ? Long.toString(100000 + n) : null;
+        return new LDAPUserIdentity(uid, username, firstName, lastName, email, password(n, random), cellPhone, personRef);
+    }
+
+    private String password(long n, SplittableRandom random) {
+        double scheme = random.nextDouble();
+        String plaintext = "secret-" + n;
+        if (scheme < noPasswordShare) {
+            return null;
+        } else if ((scheme -= noPasswordShare) < sshaShare) {
+            return saltedHash("{SSHA}", "SHA-1", plaintext, random);
+        } else if ((scheme -= sshaShare) < ssha512Share) {
+            return saltedHash("{SSHA512}", "SHA-512", plaintext, random);
+        } else if (scheme - ssha512Share < bcryptShare) {
+            StringBuilder bcrypt = new StringBuilder("{BCRYPT}$2a$10$");
+            for (int i = 0; i < 53; i++) {
+                bcrypt.append(BCRYPT_ALPHABET.charAt(random.nextInt(BCRYPT_ALPHABET.length())));
+            }
+            return bcrypt.toString();
+        }
+        return plaintext;
+    }
+
+    private static String saltedHash(String prefix, String algorithm, String plaintext, SplittableRandom random) {
+        byte[] salt = new byte[8];
+        for (int i = 0; i < salt.length; i++) {
+            salt[i] = (byte) random.nextInt(256);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            digest.update(plaintext.getBytes(StandardCharsets.UTF_8));
+            digest.update(salt);
+            byte[] hash = digest.digest();
+            byte[] hashAndSalt = new byte[hash.length + salt.length];
+            System.arraycopy(hash, 0, hashAndSalt, 0, hash.length);
+            System.arraycopy(salt, 0, hashAndSalt, hash.length, salt.length);
+            return prefix + Base64.getEncoder().encodeToString(hashAndSalt);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String pick(SplittableRandom random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
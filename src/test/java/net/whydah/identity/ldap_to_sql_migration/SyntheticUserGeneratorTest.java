@@ -0,0 +1,78 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticUserGeneratorTest {
+
+    @Test
+    public void thatEntriesAreReproducibleAndUnique() throws Exception {
+        SyntheticUserGenerator generator = new SyntheticUserGenerator();
+        Set<String> uids = new HashSet<>();
+        Set<String> usernames = new HashSet<>();
+        long[] nonUsers = new long[1];
+        generator.generate(0, 10000, new SyntheticUserGenerator.Sink() {
+            @Override
+            public void user(LDAPUserIdentity user) {
+                assertTrue(uids.add(user.getUid()));
+                assertTrue(usernames.add(user.getUsername()));
+            }
+
+            @Override
+            public void nonUser(String rdn) {
+                nonUsers[0]++;
+            }
+        });
+        assertEquals(10000, uids.size() + nonUsers[0]);
+        assertTrue(nonUsers[0] > 400 && nonUsers[0] < 600);
+
+        LDAPUserIdentity first = firstUser(generator);
+        LDAPUserIdentity again = firstUser(new SyntheticUserGenerator());
+        assertEquals(first.getUid(), again.getUid());
+        assertEquals(first.getUsername(), again.getUsername());
+        assertEquals(first.getPassword(), again.getPassword());
+    }
+
+    @Test
+    public void thatPasswordSchemesFollowTheConfiguredShares() {
+        SyntheticUserGenerator generator = new SyntheticUserGenerator();
+        generator.nonUserShare = 0;
+        generator.noPasswordShare = 0;
+        generator.sshaShare = 0.5;
+        generator.ssha512Share = 0;
+        generator.bcryptShare = 0.25;
+        Map<PasswordScheme, Integer> schemes = new EnumMap<>(PasswordScheme.class);
+        int plaintext = 0;
+        for (long n = 0; n < 10000; n++) {
+            PasswordScheme scheme = PasswordScheme.of(generator.user(n).getPassword());
+            if (scheme == null) {
+                plaintext++;
+            } else {
+                schemes.merge(scheme, 1, Integer::sum);
+            }
+        }
+        assertEquals(2, schemes.size());
+        assertTrue(Math.abs(schemes.get(PasswordScheme.SSHA) - 5000) < 250);
+        assertTrue(Math.abs(schemes.get(PasswordScheme.BCRYPT) - 2500) < 250);
+        assertTrue(Math.abs(plaintext - 2500) < 250);
+    }
+
+    private static LDAPUserIdentity firstUser(SyntheticUserGenerator generator) {
+        for (long n = 0; ; n++) {
+            LDAPUserIdentity user = generator.user(n);
+            if (user != null) {
+                assertNotNull(user.getUid());
+                return user;
+            }
+        }
+    }
+}
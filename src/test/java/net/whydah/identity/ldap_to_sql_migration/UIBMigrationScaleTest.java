@@ -0,0 +1,243 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.Main;
+import net.whydah.identity.config.ApplicationMode;
+import net.whydah.identity.dataimport.DatabaseMigrationHelper;
+import net.whydah.identity.ldapserver.EmbeddedADS;
+import net.whydah.identity.user.identity.BCryptService;
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import net.whydah.identity.user.identity.LdapUserIdentityDao;
+import net.whydah.identity.user.identity.RDBMSLdapUserIdentityDao;
+import net.whydah.identity.util.FileUtils;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.constretto.ConstrettoBuilder;
+import org.constretto.ConstrettoConfiguration;
+import org.constretto.model.Resource;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.naming.Context;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Migrates a synthetic directory of {@code -Dscale.users=N} entries from the embedded LDAP to HSQLDB and reports the
+ * throughput and the peak heap of the migration, to catch scaling regressions offline. Skipped unless
+ * {@code scale.users} is set:
+ * <pre>
+ * mvn test -Dtest=UIBMigrationScaleTest -Dscale.users=1000000 -Dscale.args="--writers 8 --batch-size 500" -DargLine=-Xmx4g
+ * </pre>
+ * {@code scale.args} are migration options, {@code scale.seed} and {@code scale.nonUserShare} are passed on to the
+ * {@link SyntheticUserGenerator}, {@code scale.loaders} is the number of threads populating the directory,
+ * {@code scale.resultFile} appends the result as a line of JSON to a file, and {@code scale.minUsersPerSecond} fails
+ * the test when the migration is slower than that.
+ * <p>
+ * The embedded directory runs in the same JVM. The heap it holds is measured after loading and reported apart from
+ * the peak seen while migrating.
+ */
+public class UIBMigrationScaleTest {
+
+    static final String ldapPath = "target/UIBMigrationScaleTest/ldap";
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+
+    static Main main;
+    static ConstrettoConfiguration configuration;
+    static BasicDataSource dataSource;
+    static String primaryLdapUrl;
+
+    @BeforeClass
+    public static void setUp() {
+        Assume.assumeTrue("Set -Dscale.users=N to run the scale test", System.getProperty("scale.users") != null);
+        FileUtils.deleteDirectory(new File(ldapPath));
+
+        ApplicationMode.setCIMode();
+        configuration = new ConstrettoBuilder()
+                .createPropertiesStore()
+                .addResource(Resource.create("classpath:useridentitybackend.properties"))
+                .addResource(Resource.create("classpath:useridentitybackend-test.properties"))
+                .done()
+                .getConfiguration();
+
+        Map<String, String> ldapProperties = Main.ldapProperties(configuration);
+        ldapProperties.put("ldap.embedded.directory", ldapPath);
+        ldapProperties.put(EmbeddedADS.PROPERTY_BIND_PORT, "10689");
+        primaryLdapUrl = "ldap://localhost:10689/dc=people,dc=whydah,dc=no";
+        ldapProperties.put("ldap.primary.url", primaryLdapUrl);
+
+        main = new Main(6652);
+        main.startEmbeddedDS(ldapProperties);
+
+        dataSource = UIBMigration.initBasicDataSource(configuration, 16);
+        DatabaseMigrationHelper dbHelper = new DatabaseMigrationHelper(dataSource);
+        dbHelper.cleanDatabase();
+        dbHelper.upgradeDatabase();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (main != null) {
+            main.stopEmbeddedDS();
+        }
+    }
+
+    @Test
+    public void thatSyntheticDirectoryIsMigratedAtScale() throws Exception {
+        long entries = Long.getLong("scale.users");
+        SyntheticUserGenerator generator = new SyntheticUserGenerator();
+        generator.seed = Long.getLong("scale.seed", generator.seed);
+        generator.nonUserShare = Double.parseDouble(System.getProperty("scale.nonUserShare", Double.toString(generator.nonUserShare)));
+
+        String admPrincipal = configuration.evaluateToString("ldap.primary.admin.principal");
+        String admCredentials = configuration.evaluateToString("ldap.primary.admin.credentials");
+        String uidAttribute = configuration.evaluateToString("ldap.primary.uid.attribute");
+        String usernameAttribute = configuration.evaluateToString("ldap.primary.username.attribute");
+        String readonly = configuration.evaluateToString("ldap.primary.readonly");
+
+        long loadStart = System.nanoTime();
+        long users = populate(generator, entries, Integer.getInteger("scale.loaders", 4), admPrincipal, admCredentials, uidAttribute, usernameAttribute, readonly);
+        double loadSeconds = (System.nanoTime() - loadStart) / 1e9;
+        System.out.printf(Locale.ROOT, "Loaded %d entries, %d of them users, into LDAP in %.1f s%n", entries, users, loadSeconds);
+
+        MigrationOptions options = MigrationOptions.parse(System.getProperty("scale.args", "").trim().isEmpty() ? new String[0] : System.getProperty("scale.args").trim().split("\\s+"));
+        options.expectedUsers = users;
+        MigrationLdapUserIdentityDao ldapDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, new UIBMigration.Mapper(), options.pageSize, options.searchFilter, options.ldapPoolSize);
+        BCryptService bCryptService = new BCryptService(configuration.evaluateToString("userdb.password.pepper"), configuration.evaluateToInt("userdb.password.bcrypt.preferredcost"));
+        UIBMigration migration = new UIBMigration(ldapDao, new RDBMSLdapUserIdentityDao(dataSource), dataSource, bCryptService, options);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peakHeap = new AtomicLong(baselineHeap);
+        ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor();
+        heapSampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        long migrateStart = System.nanoTime();
+        try {
+            migration.migrate();
+        } finally {
+            heapSampler.shutdownNow();
+            ldapDao.close();
+        }
+        double migrateSeconds = (System.nanoTime() - migrateStart) / 1e9;
+        double usersPerSecond = users / Math.max(migrateSeconds, 1e-9);
+        long rows = countRows();
+
+        String result = String.format(Locale.ROOT,
+                "{\"entries\": %d, \"users\": %d, \"written\": %d, \"failed\": %d, \"preHashed\": %d, \"rows\": %d, \"seconds\": %.3f, \"usersPerSecond\": %.1f, \"baselineHeapMb\": %.1f, \"peakHeapMb\": %.1f, \"maxHeapMb\": %.1f, \"args\": \"%s\"}",
+                entries, users, migration.writtenCount.get(), migration.failedCount.get(), migration.preHashedCount.get(), rows, migrateSeconds, usersPerSecond,
+                baselineHeap / 1048576.0, peakHeap.get() / 1048576.0, memory.getHeapMemoryUsage().getMax() / 1048576.0,
+                System.getProperty("scale.args", "").replace("\\", "\\\\").replace("\"", "\\\""));
+        System.out.printf("SCALE TEST RESULT: %s%n", result);
+        String resultFile = System.getProperty("scale.resultFile");
+        if (resultFile != null) {
+            Files.write(Paths.get(resultFile), (result + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        assertEquals(users, migration.completedCount());
+        assertEquals(migration.writtenCount.get(), rows);
+        String minUsersPerSecond = System.getProperty("scale.minUsersPerSecond");
+        if (minUsersPerSecond != null) {
+            assertTrue(String.format(Locale.ROOT, "%.1f users/s is below the minimum of %s", usersPerSecond, minUsersPerSecond),
+                    usersPerSecond >= Double.parseDouble(minUsersPerSecond));
+        }
+    }
+
+    /**
+     * Streams the generated entries into LDAP, each loader thread generating and adding its own range of them.
+     *
+     * @return the number of users added.
+     */
+    private static long populate(SyntheticUserGenerator generator, long entries, int loaders, String admPrincipal, String admCredentials,
+                                 String uidAttribute, String usernameAttribute, String readonly) throws Exception {
+        AtomicLong users = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(loaders);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < loaders; i++) {
+                final long from = entries * i / loaders;
+                final long to = entries * (i + 1) / loaders;
+                futures.add(executor.submit(() -> {
+                    LdapUserIdentityDao userDao = new LdapUserIdentityDao(primaryLdapUrl, admPrincipal, admCredentials, uidAttribute, usernameAttribute, readonly);
+                    DirContext context = new InitialDirContext(environment(admPrincipal, admCredentials));
+                    try {
+                        generator.generate(from, to, new SyntheticUserGenerator.Sink() {
+                            @Override
+                            public void user(LDAPUserIdentity user) throws Exception {
+                                assertTrue(userDao.addUserIdentity(user));
+                                users.incrementAndGet();
+                            }
+
+                            @Override
+                            public void nonUser(String rdn) throws Exception {
+                                Attributes attributes = new BasicAttributes(true);
+                                BasicAttribute objectClass = new BasicAttribute("objectClass");
+                                objectClass.add("top");
+                                objectClass.add("organizationalUnit");
+                                attributes.put(objectClass);
+                                context.createSubcontext(rdn, attributes).close();
+                            }
+                        });
+                    } finally {
+                        context.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return users.get();
+    }
+
+    private static Hashtable<String, String> environment(String admPrincipal, String admCredentials) {
+        Hashtable<String, String> environment = new Hashtable<>();
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        environment.put(Context.PROVIDER_URL, primaryLdapUrl);
+        environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+        environment.put(Context.SECURITY_PRINCIPAL, admPrincipal);
+        environment.put(Context.SECURITY_CREDENTIALS, admCredentials);
+        return environment;
+    }
+
+    private static long countRows() throws Exception {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + UserIdentitySql.TABLE)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
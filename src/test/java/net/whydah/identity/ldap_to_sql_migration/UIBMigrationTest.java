@@ -24,6 +24,8 @@ import org.junit.Test;
 import javax.naming.NamingException;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Spliterator;
@@ -33,6 +35,7 @@ import java.util.stream.StreamSupport;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class UIBMigrationTest {
@@ -47,6 +50,13 @@ public class UIBMigrationTest {
     static BCryptService bCryptService;
     static RDBMSLdapUserIdentityRepository rdbmsLdapUserIdentityRepository;
     static UserIdentityConverter converter;
+    static BasicDataSource dataSource;
+
+    static String primaryLdapUrl;
+    static String primaryAdmPrincipal;
+    static String primaryAdmCredentials;
+    static String primaryUidAttribute;
+    static String primaryUsernameAttribute;
 
     @BeforeClass
     public static void setUp() {
@@ -63,23 +73,23 @@ public class UIBMigrationTest {
         Map<String, String> ldapProperties = Main.ldapProperties(configuration);
         ldapProperties.put("ldap.embedded.directory", ldapPath);
         ldapProperties.put(EmbeddedADS.PROPERTY_BIND_PORT, "10589");
-        String primaryLdapUrl = "ldap://localhost:10589/dc=people,dc=whydah,dc=no";
+        primaryLdapUrl = "ldap://localhost:10589/dc=people,dc=whydah,dc=no";
         ldapProperties.put("ldap.primary.url", primaryLdapUrl);
         FileUtils.deleteDirectories(ldapPath);
 
         main = new Main(6651); // web-server and application-context never started
         main.startEmbeddedDS(ldapProperties); // need embedded ldap server to run, used by dao
 
-        String primaryAdmPrincipal = configuration.evaluateToString("ldap.primary.admin.principal");
-        String primaryAdmCredentials = configuration.evaluateToString("ldap.primary.admin.credentials");
-        String primaryUidAttribute = configuration.evaluateToString("ldap.primary.uid.attribute");
-        String primaryUsernameAttribute = configuration.evaluateToString("ldap.primary.username.attribute");
+        primaryAdmPrincipal = configuration.evaluateToString("ldap.primary.admin.principal");
+        primaryAdmCredentials = configuration.evaluateToString("ldap.primary.admin.credentials");
+        primaryUidAttribute = configuration.evaluateToString("ldap.primary.uid.attribute");
+        primaryUsernameAttribute = configuration.evaluateToString("ldap.primary.username.attribute");
         String readonly = configuration.evaluateToString("ldap.primary.readonly");
 
         migrationLdapUserIdentityDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, new UIBMigration.Mapper());
         ldapUserIdentityDao = new LdapUserIdentityDao(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, readonly);
 
-        BasicDataSource dataSource = UIBMigration.initBasicDataSource(configuration);
+        dataSource = UIBMigration.initBasicDataSource(configuration);
         DatabaseMigrationHelper dbHelper = new DatabaseMigrationHelper(dataSource);
         dbHelper.cleanDatabase();
         dbHelper.upgradeDatabase();
@@ -133,4 +143,80 @@ public class UIBMigrationTest {
         }
     }
 
+    @Test
+    public void thatPagedScanReadsEveryUser() throws NamingException {
+        addUsers("paged", 5);
+        MigrationLdapUserIdentityDao smallPagesDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, new UIBMigration.Mapper(), 2, null, 1);
+
+        long pagedCount = count(smallPagesDao.allUsersWithPassword());
+
+        assertTrue(pagedCount >= 5);
+        assertEquals(count(migrationLdapUserIdentityDao.allUsersWithPassword()), pagedCount);
+    }
+
+    @Test
+    public void thatScanFilterIsAppliedOnTheServer() throws NamingException {
+        addUsers("filtered", 3);
+        String filter = "(&(" + primaryUidAttribute + "=*)(" + primaryUsernameAttribute + "=filtered.*))";
+        MigrationLdapUserIdentityDao filteredDao = new MigrationLdapUserIdentityDao(primaryLdapUrl, primaryAdmPrincipal, primaryAdmCredentials, primaryUidAttribute, primaryUsernameAttribute, new UIBMigration.Mapper(), 2, filter, 1);
+
+        assertEquals(3, count(filteredDao.allUsersWithPassword()));
+    }
+
+    @Test
+    public void thatSingleUserIsFoundByUsernameOrUid() throws NamingException {
+        addUsers("lookup", 1);
+
+        assertEquals("lookup.0.uid", migrationLdapUserIdentityDao.getUserIndentityWithPassword("lookup.0").getUid());
+        assertEquals("lookup.0", migrationLdapUserIdentityDao.getUserIndentityWithPassword("lookup.0.uid").getUsername());
+        assertNull(migrationLdapUserIdentityDao.getUserIndentityWithPassword("no-such-user*"));
+    }
+
+    @Test
+    public void thatManyUsersAreFoundInOneSearch() throws NamingException {
+        addUsers("batch", 2);
+
+        Map<String, LDAPUserIdentity> batch = migrationLdapUserIdentityDao.getUserIdentitiesWithPassword(Arrays.asList("batch.0", "batch.1.uid", "no-such-user"));
+
+        assertEquals(2, batch.size());
+        assertEquals("batch.0.uid", batch.get("batch.0").getUid());
+        assertEquals("batch.1", batch.get("batch.1.uid").getUsername());
+    }
+
+    @Test
+    public void thatMigrationWithExistingUserIndexCopiesAllUsers() throws NamingException {
+        List<LDAPUserIdentity> indexed = addUsers("indexed", 3);
+        MigrationOptions options = new MigrationOptions();
+
+        UIBMigration uibMigration = new UIBMigration(migrationLdapUserIdentityDao, rdbmsLdapUserIdentityDao, dataSource, bCryptService, options);
+        uibMigration.migrate();
+
+        for (LDAPUserIdentity ldapUserIdentity : migrationLdapUserIdentityDao.allUsersWithPassword()) {
+            assertNotNull(rdbmsLdapUserIdentityDao.get(ldapUserIdentity.getUid()));
+        }
+        for (LDAPUserIdentity ldapUserIdentity : indexed) {
+            assertNotNull(rdbmsLdapUserIdentityRepository.authenticate(ldapUserIdentity.getUsername(), ldapUserIdentity.getPassword()));
+        }
+
+        UIBMigration again = new UIBMigration(migrationLdapUserIdentityDao, rdbmsLdapUserIdentityDao, dataSource, bCryptService, options);
+        again.migrate();
+        assertEquals(0, again.writtenCount.get());
+        assertEquals(again.migrationCount.get(), again.skippedCount.get());
+    }
+
+    private static List<LDAPUserIdentity> addUsers(String prefix, int n) throws NamingException {
+        List<LDAPUserIdentity> users = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String username = prefix + "." + i;
+            LDAPUserIdentity user = new LDAPUserIdentity(username + ".uid", username, "First", "Last", username + "@example.com", "secret-" + username, "+4712345678", username + ".ref");
+            assertTrue(ldapUserIdentityDao.addUserIdentity(user));
+            users.add(user);
+        }
+        return users;
+    }
+
+    private static long count(Iterable<LDAPUserIdentity> users) {
+        return StreamSupport.stream(users.spliterator(), false).count();
+    }
+
 }
\ No newline at end of file
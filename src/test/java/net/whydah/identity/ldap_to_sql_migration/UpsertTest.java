@@ -0,0 +1,50 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UpsertTest {
+
+    private static final LDAPUserIdentity MIGRATED = new LDAPUserIdentity("uid-1", "user1", "First", "Last", "user1@example.com", "secret", "+4712345678", "ref-1");
+    private static final LDAPUserIdentity NEW_PASSWORD = new LDAPUserIdentity("uid-1", "user1", "First", "Last", "user1@example.com", "changed", "+4712345678", "ref-1");
+
+    @Test
+    public void thatPasswordOnlyChangeIsUpdatedByIncrementalSync() {
+        // the limit of plain --upsert: the digests of the row and of the user with a new password are the same
+        assertEquals(UserIdentityDigest.of(MIGRATED), UserIdentityDigest.of(NEW_PASSWORD));
+
+        UIBMigration upsert = migration("--upsert");
+        assertTrue(upsert.isUnchanged(NEW_PASSWORD));
+
+        UIBMigration incremental = migration("--incremental", "--upsert");
+        assertFalse(incremental.isUnchanged(NEW_PASSWORD));
+        assertFalse(incremental.isUnchanged(MIGRATED));
+    }
+
+    @Test
+    public void thatChangedContentIsNotUnchanged() {
+        UIBMigration upsert = migration("--upsert");
+        assertFalse(upsert.isUnchanged(new LDAPUserIdentity("uid-1", "user1", "First", "Last", "new@example.com", "secret", "+4712345678", "ref-1")));
+        assertTrue(upsert.isUnchanged(MIGRATED));
+    }
+
+    @Test
+    public void thatOnlyAnExistingUidIsUpdated() throws Exception {
+        UIBMigration upsert = migration("--upsert");
+        assertEquals(UIBMigration.ExistingUser.UID, upsert.existingUser(new LDAPUserIdentity("uid-1", "renamed", "First", "Last", null, "secret", null, null)));
+        assertEquals(UIBMigration.ExistingUser.USERNAME, upsert.existingUser(new LDAPUserIdentity("uid-2", "USER1", "First", "Last", null, "secret", null, null)));
+        assertEquals(UIBMigration.ExistingUser.NONE, upsert.existingUser(new LDAPUserIdentity("uid-3", "user3", "First", "Last", null, "secret", null, null)));
+    }
+
+    private static UIBMigration migration(String... args) {
+        UIBMigration migration = new UIBMigration((MigrationLdapUserIdentityDao) null, null, null, null, MigrationOptions.parse(args));
+        migration.existingUsers = new UserIdentityIndex(0, true);
+        migration.existingUsers.add("uid-1", "user1");
+        migration.existingUsers.addContent(UserIdentityDigest.ofRow("uid-1", "user1", "First", "Last", "ref-1", "user1@example.com", "+4712345678", null, "$2a$04$hash"));
+        return migration;
+    }
+}
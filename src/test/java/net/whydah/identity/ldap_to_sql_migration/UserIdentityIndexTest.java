@@ -0,0 +1,56 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserIdentityIndexTest {
+
+    @Test
+    public void thatExistingUidOrUsernameCannotBeClaimed() {
+        UserIdentityIndex index = new UserIdentityIndex(0);
+        index.add("uid-1", "user1");
+        assertFalse(index.claim("uid-1", "other"));
+        assertFalse(index.claim("uid-2", "user1"));
+        assertTrue(index.claim("uid-2", "user2"));
+        assertFalse(index.claim("uid-2", "user2"));
+        assertTrue(index.contains("uid-3", "user2"));
+        assertFalse(index.contains("uid-3", "user3"));
+    }
+
+    @Test
+    public void thatUsernamesAreMatchedIgnoringCase() {
+        UserIdentityIndex index = new UserIdentityIndex(0);
+        index.add("uid-1", "Jane.Doe");
+        assertTrue(index.contains("uid-2", "jane.doe"));
+        assertFalse(index.claim("uid-2", "JANE.DOE"));
+        assertTrue(index.claim("uid-2", "john.doe"));
+        assertFalse(index.claim("uid-3", "John.Doe"));
+    }
+
+    @Test
+    public void thatIndexGrowsBeyondExpectedSize() {
+        UserIdentityIndex index = new UserIdentityIndex(10);
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(index.claim("uid-" + i, "user" + i));
+        }
+        assertEquals(100000, index.size());
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(index.contains("uid-" + i, "nobody"));
+        }
+    }
+
+    @Test
+    public void thatOnlyUnchangedContentIsFound() {
+        UserIdentityIndex index = new UserIdentityIndex(0, true);
+        index.add("uid-1", "user1");
+        index.addContent(UserIdentityDigest.ofRow("uid-1", "user1", "First", "Last", "ref-1", "user1@example.com", "+4712345678", null, "$2a$04$hash"));
+
+        assertTrue(index.containsContent(UserIdentityDigest.of(new LDAPUserIdentity("uid-1", "user1", "First", "Last", "user1@example.com", "secret", "+4712345678", "ref-1"))));
+        assertFalse(index.containsContent(UserIdentityDigest.of(new LDAPUserIdentity("uid-1", "user1", "First", "Last", "new@example.com", "secret", "+4712345678", "ref-1"))));
+        assertFalse(new UserIdentityIndex(0).containsContent(UserIdentityDigest.of(new LDAPUserIdentity("uid-1", "user1", "First", "Last", "user1@example.com", "secret", "+4712345678", "ref-1"))));
+    }
+}
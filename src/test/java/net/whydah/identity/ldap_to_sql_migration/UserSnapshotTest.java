@@ -0,0 +1,127 @@
+package net.whydah.identity.ldap_to_sql_migration;
+
+import net.whydah.identity.user.identity.LDAPUserIdentity;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserSnapshotTest {
+
+    @Test
+    public void thatUsersSurviveRoundTrip() throws Exception {
+        assertRoundTrip("users.snapshot");
+    }
+
+    @Test
+    public void thatCompressedUsersSurviveRoundTrip() throws Exception {
+        assertRoundTrip("users.snapshot.gz");
+    }
+
+    private void assertRoundTrip(String fileName) throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve(fileName);
+        try {
+            try (UserSnapshotWriter writer = new UserSnapshotWriter(file)) {
+                for (int i = 0; i < 1000; i++) {
+                    writer.write(new LDAPUserIdentity("uid-" + i, "user" + i, "Jós", "Last", "user" + i + "@example.com", "{SSHA}secret" + i, i % 2 == 0 ? null : "+4712345678", "ref-" + i));
+                }
+                writer.finish();
+            }
+            try (UserSnapshotReader reader = new UserSnapshotReader(file)) {
+                for (int i = 0; i < 1000; i++) {
+                    assertTrue(reader.hasNext());
+                    LDAPUserIdentity user = reader.next();
+                    assertEquals("uid-" + i, user.getUid());
+                    assertEquals("user" + i, user.getUsername());
+                    assertEquals("Jós", user.getFirstName());
+                    assertEquals("{SSHA}secret" + i, user.getPassword());
+                    if (i % 2 == 0) {
+                        assertNull(user.getCellPhone());
+                    } else {
+                        assertEquals("+4712345678", user.getCellPhone());
+                    }
+                    assertEquals("ref-" + i, user.getPersonRef());
+                }
+                assertFalse(reader.hasNext());
+                assertEquals(1000, reader.getCount());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void thatUnfinishedSnapshotIsRejected() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("users.snapshot");
+        try {
+            try (UserSnapshotWriter writer = new UserSnapshotWriter(file)) {
+                writer.write(new LDAPUserIdentity("uid-1", "user1", "First", "Last", null, null, null, null));
+            }
+            try (UserSnapshotReader reader = new UserSnapshotReader(file)) {
+                assertTrue(reader.hasNext());
+                reader.next();
+                reader.hasNext();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void thatExistingFileIsReplacedByOneReadableByItsOwnerOnly() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("users.snapshot");
+        try {
+            Files.write(file, new byte[]{1, 2, 3});
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+            try (UserSnapshotWriter writer = new UserSnapshotWriter(file)) {
+                writer.finish();
+            }
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+            try (UserSnapshotReader reader = new UserSnapshotReader(file)) {
+                assertFalse(reader.hasNext());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void thatNegativeRecordLengthIsCorrupt() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("users.snapshot");
+        try {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+                out.writeInt(UserSnapshotWriter.MAGIC);
+                out.writeShort(UserSnapshotWriter.VERSION);
+                out.writeInt(-2);
+            }
+            try (UserSnapshotReader reader = new UserSnapshotReader(file)) {
+                reader.hasNext();
+                fail("Negative record length must be rejected");
+            } catch (UncheckedIOException e) {
+                assertEquals("Corrupt user snapshot record", e.getCause().getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}